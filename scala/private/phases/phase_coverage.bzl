@@ -36,11 +36,25 @@ def _phase_coverage(ctx, p, srcjars):
         "InstrumentedFilesInfo": instrumented_files_provider,
     }
 
+    toolchain = ctx.toolchains["@io_bazel_rules_scala//scala:toolchain_type"]
+
     if len(ctx.files.srcs) + len(srcjars.to_list()) == 0 or not ctx.coverage_instrumented():
         return struct(
             replacements = {},
             external_providers = external_providers,
         )
+    elif toolchain.coverage_instrumentation == "agent":
+        # With the agent, classes are instrumented while tests run, and compile_scala adds the
+        # -paths-for-coverage.txt metadata to the jar itself. The jar replaces itself, so that
+        # tests still know which of their jars are instrumented.
+        replacements = {ctx.outputs.jar: ctx.outputs.jar}
+        external_providers["_CoverageReplacements"] = _coverage_replacements_provider.create(
+            replacements = replacements,
+        )
+        return struct(
+            replacements = replacements,
+            external_providers = external_providers,
+        )
     else:
         input_jar = ctx.outputs.jar
         output_jar = ctx.actions.declare_file(
@@ -50,6 +64,11 @@ def _phase_coverage(ctx, p, srcjars):
         args = ctx.actions.args()
         args.set_param_file_format("multiline")
         args.use_param_file("@%s", use_always = True)
+        args.add_joined(
+            "--class_filter",
+            toolchain.coverage_instrumentation_filter,
+            join_with = ",",
+        )
         args.add(input_jar)
         args.add(output_jar)
         args.add_all(ctx.files.srcs)
@@ -59,7 +78,11 @@ def _phase_coverage(ctx, p, srcjars):
             inputs = [input_jar],
             outputs = [output_jar],
             executable = ctx.attr._code_coverage_instrumentation_worker.files_to_run,
-            execution_requirements = {"supports-workers": "1"},
+            execution_requirements = {
+                "supports-multiplex-workers": "1",
+                "supports-worker-cancellation": "1",
+                "supports-workers": "1",
+            },
             arguments = [args],
         )
 
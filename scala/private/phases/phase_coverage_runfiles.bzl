@@ -10,6 +10,8 @@ load(
 
 def phase_coverage_runfiles(ctx, p):
     coverage_runfiles = []
+    instrumented_jars = []
+    agent_includes = None
     rjars = p.compile.rjars
     if ctx.configuration.coverage_enabled:
         coverage_replacements = _coverage_replacements_provider.from_ctx(
@@ -21,10 +23,49 @@ def phase_coverage_runfiles(ctx, p):
             coverage_replacements[jar] if jar in coverage_replacements else jar
             for jar in rjars.to_list()
         ])
-        jacocorunner = ctx.toolchains["@io_bazel_rules_scala//scala:toolchain_type"].jacocorunner
+        toolchain = ctx.toolchains["@io_bazel_rules_scala//scala:toolchain_type"]
+        jacocorunner = toolchain.jacocorunner
         coverage_runfiles = jacocorunner.files.to_list() + ctx.files._lcov_merger + coverage_replacements.values()
+        if toolchain.coverage_instrumentation == "agent":
+            # With the agent, the jars of coverage instrumented targets replace themselves
+            replaced = {jar: None for jar in coverage_replacements.values()}
+            instrumented_jars = [jar for jar in rjars.to_list() if jar in replaced]
+            if instrumented_jars:
+                agent_includes = _agent_includes(ctx, toolchain, instrumented_jars)
+                coverage_runfiles = coverage_runfiles + toolchain.jacoco_agent.files.to_list() + [agent_includes]
     return struct(
+        agent_includes = agent_includes,
         coverage_runfiles = coverage_runfiles,
+        instrumented_jars = instrumented_jars,
         runfiles = depset(coverage_runfiles),
         rjars = rjars,
     )
+
+def _agent_includes(ctx, toolchain, instrumented_jars):
+    # The agent would otherwise instrument every class the test loads
+    agent_includes = ctx.actions.declare_file("%s.jacoco_agent_includes.txt" % ctx.label.name)
+
+    args = ctx.actions.args()
+    args.set_param_file_format("multiline")
+    args.use_param_file("@%s", use_always = True)
+    args.add_joined(
+        "--class_filter",
+        toolchain.coverage_instrumentation_filter,
+        join_with = ",",
+    )
+    args.add("--agent_includes", agent_includes)
+    args.add_all(instrumented_jars)
+
+    ctx.actions.run(
+        mnemonic = "JacocoAgentIncludes",
+        inputs = instrumented_jars,
+        outputs = [agent_includes],
+        executable = ctx.attr._code_coverage_instrumentation_worker.files_to_run,
+        execution_requirements = {
+            "supports-multiplex-workers": "1",
+            "supports-worker-cancellation": "1",
+            "supports-workers": "1",
+        },
+        arguments = [args],
+    )
+    return agent_includes
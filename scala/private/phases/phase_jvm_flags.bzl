@@ -4,17 +4,14 @@
 # DOCUMENT THIS
 #
 def phase_jvm_flags(ctx, p):
-    if ctx.attr.tests_from:
-        archives = _get_test_archive_jars(ctx, ctx.attr.tests_from)
-    else:
-        archives = p.compile.merged_provider.runtime_output_jars
+    archives = test_archives(ctx, p)
 
     serialized_archives = _serialize_archives_short_path(archives)
     test_suite = _gen_test_suite_flags_based_on_prefixes_and_suffixes(
         ctx,
         serialized_archives,
     )
-    return [
+    flags = [
         "-ea",
         test_suite.archiveFlag,
         test_suite.prefixesFlag,
@@ -22,6 +19,14 @@ def phase_jvm_flags(ctx, p):
         test_suite.printFlag,
         test_suite.testSuiteFlag,
     ]
+    if hasattr(p, "test_index"):
+        flags.append("-Dbazel.discover.classes.index.file.path=%s" % p.test_index.index.short_path)
+    return flags
+
+def test_archives(ctx, p):
+    if ctx.attr.tests_from:
+        return _get_test_archive_jars(ctx, ctx.attr.tests_from)
+    return p.compile.merged_provider.runtime_output_jars
 
 def _gen_test_suite_flags_based_on_prefixes_and_suffixes(ctx, archives):
     return struct(
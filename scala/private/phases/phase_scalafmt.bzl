@@ -36,7 +36,11 @@ def _build_format(ctx):
                 executable = ctx.executable._fmt,
                 outputs = [file],
                 inputs = [ctx.file.config, src],
-                execution_requirements = {"supports-workers": "1"},
+                execution_requirements = {
+                    "supports-multiplex-workers": "1",
+                    "supports-worker-cancellation": "1",
+                    "supports-workers": "1",
+                },
                 mnemonic = "ScalaFmt",
             )
             manifest_content.append("{} {}".format(src.short_path, file.short_path))
@@ -0,0 +1,34 @@
+#
+# PHASE: test index
+#
+# Writes the classes of the test archives matching the prefixes or suffixes of a test when it's
+# built, so that its test discovery doesn't go through the archives every time it runs
+#
+load(
+    "@io_bazel_rules_scala//scala/private:phases/phase_jvm_flags.bzl",
+    "test_archives",
+)
+
+def phase_test_index(ctx, p):
+    index = ctx.actions.declare_file("%s_test_index.txt" % ctx.label.name)
+    archives = test_archives(ctx, p)
+
+    args = ctx.actions.args()
+    args.add(index, format = "--output=%s")
+    args.add(",".join(ctx.attr.prefixes), format = "--prefixes=%s")
+    args.add(",".join(ctx.attr.suffixes), format = "--suffixes=%s")
+    args.add_all(archives)
+
+    ctx.actions.run(
+        inputs = archives,
+        outputs = [index],
+        executable = ctx.executable._test_index_generator,
+        mnemonic = "ScalaTestIndex",
+        progress_message = "scala test index %s" % ctx.label,
+        arguments = [args],
+    )
+
+    return struct(
+        index = index,
+        runfiles = depset([index]),
+    )
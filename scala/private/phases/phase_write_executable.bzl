@@ -21,6 +21,7 @@ def phase_write_executable_scalatest(ctx, p):
     )
     args = struct(
         rjars = p.coverage_runfiles.rjars,
+        coverage = p.coverage_runfiles,
         jvm_flags = [
             "-DRULES_SCALA_MAIN_WS_NAME=%s" % ctx.workspace_name,
             "-DRULES_SCALA_ARGS_FILE=%s" % p.runfiles.args_file.short_path,
@@ -39,6 +40,7 @@ def phase_write_executable_repl(ctx, p):
 def phase_write_executable_junit_test(ctx, p):
     args = struct(
         rjars = p.coverage_runfiles.rjars,
+        coverage = p.coverage_runfiles,
         jvm_flags = p.jvm_flags + ctx.attr.jvm_flags,
         main_class = "com.google.testing.junit.runner.BazelTestRunner",
         use_jacoco = ctx.configuration.coverage_enabled,
@@ -56,6 +58,7 @@ def _phase_write_executable_default(ctx, p, _args = struct()):
         _args.jvm_flags if hasattr(_args, "jvm_flags") else ctx.attr.jvm_flags,
         _args.use_jacoco if hasattr(_args, "use_jacoco") else False,
         _args.main_class if hasattr(_args, "main_class") else ctx.attr.main_class,
+        _args.coverage if hasattr(_args, "coverage") else None,
     )
 
 def _phase_write_executable(
@@ -64,14 +67,15 @@ def _phase_write_executable(
         rjars,
         jvm_flags,
         use_jacoco,
-        main_class):
+        main_class,
+        coverage):
     executable = p.declare_executable.executable
     wrapper = p.java_wrapper
 
     if (is_windows(ctx)):
         return _write_executable_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco)
     else:
-        return _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco)
+        return _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco, coverage)
 
 def _write_executable_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco):
     # NOTE: `use_jacoco` is currently ignored on Windows.
@@ -96,7 +100,7 @@ def _write_executable_windows(ctx, executable, rjars, main_class, jvm_flags, wra
     )
     return []
 
-def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco):
+def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags, wrapper, use_jacoco, coverage):
     template = ctx.attr._java_stub_template.files.to_list()[0]
 
     jvm_flags = " ".join(
@@ -114,6 +118,12 @@ def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags,
 
     if use_jacoco and ctx.configuration.coverage_enabled:
         jacocorunner = scala_toolchain.jacocorunner
+        agent = scala_toolchain.coverage_instrumentation == "agent"
+
+        # With the agent, only the jars of coverage instrumented targets are analyzed
+        metadata_jars = coverage.instrumented_jars if agent else rjars.to_list()
+        if agent and coverage.agent_includes:
+            jvm_flags = _jacoco_agent_flag(scala_toolchain, coverage.agent_includes) + " " + jvm_flags
         classpath = ctx.configuration.host_path_separator.join(
             ["${RUNPATH}%s" % (j.short_path) for j in rjars.to_list() + jacocorunner.files.to_list()],
         )
@@ -123,7 +133,7 @@ def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags,
         )
         ctx.actions.write(jacoco_metadata_file, "\n".join([
             jar.short_path.replace("../", "external/")
-            for jar in rjars.to_list()
+            for jar in metadata_jars
         ]))
         ctx.actions.expand_template(
             template = template,
@@ -140,7 +150,9 @@ def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags,
                 "%set_jacoco_metadata%": "export JACOCO_METADATA_JAR=\"$JAVA_RUNFILES/{}/{}\"".format(ctx.workspace_name, jacoco_metadata_file.short_path),
                 "%set_jacoco_main_class%": """export JACOCO_MAIN_CLASS={}""".format(main_class),
                 "%set_jacoco_java_runfiles_root%": """export JACOCO_JAVA_RUNFILES_ROOT=$JAVA_RUNFILES/{}/""".format(ctx.workspace_name),
-                "%set_java_coverage_new_implementation%": """export JAVA_COVERAGE_NEW_IMPLEMENTATION=YES""",
+                # The new implementation only analyzes the .uninstrumented classes of offline
+                # instrumented jars, with the agent the classes of the jars are analyzed as they are
+                "%set_java_coverage_new_implementation%": "export JAVA_COVERAGE_NEW_IMPLEMENTATION=%s" % ("NO" if agent else "YES"),
                 "%test_runner_classpath_mode%": test_runner_classpath_mode,
             },
             is_executable = True,
@@ -174,6 +186,19 @@ def _write_executable_non_windows(ctx, executable, rjars, main_class, jvm_flags,
         )
         return []
 
+def _jacoco_agent_flag(scala_toolchain, agent_includes):
+    # The runner collects the execution data from the agent, which doesn't write its own. The
+    # includes are the packages of the instrumented jars, read when the test starts.
+    options = ["output=none", "includes=$(cat ${RUNPATH}%s)" % agent_includes.short_path]
+    patterns = scala_toolchain.coverage_instrumentation_filter
+    excludes = [p[1:] for p in patterns if p.startswith("-")]
+    if excludes:
+        options.append("excludes=" + ":".join(excludes))
+    return "-javaagent:${RUNPATH}%s=%s" % (
+        scala_toolchain.jacoco_agent.files.to_list()[0].short_path,
+        ",".join(options),
+    )
+
 def _jar_path_based_on_java_bin(ctx):
     java_bin_var = java_bin(ctx)
     jar_path = java_bin_var.rpartition("/")[0] + "/jar"
@@ -66,6 +66,7 @@ load("@io_bazel_rules_scala//scala/private:phases/phase_scalacopts.bzl", _phase_
 load("@io_bazel_rules_scala//scala/private:phases/phase_coverage_runfiles.bzl", _phase_coverage_runfiles = "phase_coverage_runfiles")
 load("@io_bazel_rules_scala//scala/private:phases/phase_scalafmt.bzl", _phase_scalafmt = "phase_scalafmt")
 load("@io_bazel_rules_scala//scala/private:phases/phase_test_environment.bzl", _phase_test_environment = "phase_test_environment")
+load("@io_bazel_rules_scala//scala/private:phases/phase_test_index.bzl", _phase_test_index = "phase_test_index")
 
 # API
 run_phases = _run_phases
@@ -93,6 +94,9 @@ phase_declare_executable = _phase_declare_executable
 # merge_jars
 phase_merge_jars = _phase_merge_jars
 
+# test_index
+phase_test_index = _phase_test_index
+
 # jvm_flags
 phase_jvm_flags = _phase_jvm_flags
 
@@ -67,6 +67,10 @@ def compile_scala(
     classpath_resources = getattr(ctx.files, "classpath_resources", [])
     scalacopts_expanded = [ctx.expand_location(v, input_plugins) for v in scalacopts]
     resource_paths = _resource_paths(resources, resource_strip_prefix)
+    coverage_metadata = _coverage_metadata(ctx, toolchain, target_label)
+    if coverage_metadata:
+        resources = resources + [coverage_metadata]
+        resource_paths = resource_paths + [(target_label.name + "-paths-for-coverage.txt", coverage_metadata.path)]
     enable_stats_file = toolchain.enable_stats_file
     enable_diagnostics_report = toolchain.enable_diagnostics_report
 
@@ -125,7 +129,11 @@ def compile_scala(
         executable = scalac,
         mnemonic = "Scalac",
         progress_message = "scala %s" % target_label,
-        execution_requirements = {"supports-workers": "1"},
+        execution_requirements = {
+            "supports-multiplex-workers": "1",
+            "supports-worker-cancellation": "1",
+            "supports-workers": "1",
+        },
         #  when we run with a worker, the `@argfile.path` is removed and passed
         #  line by line as arguments in the protobuf. In that case,
         #  the rest of the arguments are passed to the process that
@@ -140,6 +148,16 @@ def compile_scala(
         ] + [args],
     )
 
+def _coverage_metadata(ctx, toolchain, target_label):
+    # Instrumented by the Jacoco agent, the jar itself carries the sources Bazel's coverage runner
+    # needs to resolve, which JacocoInstrumenter adds to offline instrumented jars
+    if (not ctx.configuration.coverage_enabled or not ctx.coverage_instrumented() or
+        toolchain.coverage_instrumentation != "agent"):
+        return None
+    metadata = ctx.actions.declare_file(target_label.name + "-paths-for-coverage.txt")
+    ctx.actions.write(metadata, "\n".join([f.path for f in getattr(ctx.files, "srcs", [])]))
+    return metadata
+
 def compile_java(ctx, source_jars, source_files, output, extra_javac_opts, providers_of_dependencies):
     java_toolchain = specified_java_compile_toolchain(ctx)
 
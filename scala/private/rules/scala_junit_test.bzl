@@ -25,6 +25,7 @@ load(
     "phase_scalac_provider",
     "phase_scalacopts",
     "phase_test_environment",
+    "phase_test_index",
     "phase_write_executable_junit_test",
     "phase_write_manifest",
     "run_phases",
@@ -52,6 +53,7 @@ def _scala_junit_test_impl(ctx):
             ("merge_jars", phase_merge_jars),
             ("runfiles", phase_runfiles_common),
             ("coverage_runfiles", phase_coverage_runfiles),
+            ("test_index", phase_test_index),
             ("jvm_flags", phase_jvm_flags),
             ("write_executable", phase_write_executable_junit_test),
             ("default_info", phase_default_info),
@@ -90,6 +92,13 @@ _scala_junit_test_attrs = {
         ),
         allow_files = True,
     ),
+    "_test_index_generator": attr.label(
+        default = Label(
+            "@io_bazel_rules_scala//src/java/io/bazel/rulesscala/test_discovery:test_index_generator",
+        ),
+        executable = True,
+        cfg = "exec",
+    ),
     "_lcov_merger": attr.label(
         default = Label(
             "@bazel_tools//tools/test/CoverageOutputGenerator/java/com/google/devtools/coverageoutputgenerator:Main",
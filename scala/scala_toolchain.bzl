@@ -68,6 +68,9 @@ def _scala_toolchain_impl(ctx):
     all_unused_deps_patterns = ctx.attr.dependency_tracking_unused_deps_patterns
     unused_deps_includes, unused_deps_excludes = _partition_patterns(all_unused_deps_patterns)
 
+    if ctx.attr.coverage_instrumentation == "agent" and not ctx.attr.jacoco_agent:
+        fail("coverage_instrumentation = \"agent\" needs a jacoco_agent")
+
     toolchain = platform_common.ToolchainInfo(
         scalacopts = ctx.attr.scalacopts,
         dep_providers = ctx.attr.dep_providers,
@@ -83,6 +86,9 @@ def _scala_toolchain_impl(ctx):
         scala_test_jvm_flags = ctx.attr.scala_test_jvm_flags,
         enable_diagnostics_report = enable_diagnostics_report,
         jacocorunner = ctx.attr.jacocorunner,
+        coverage_instrumentation_filter = ctx.attr.coverage_instrumentation_filter,
+        coverage_instrumentation = ctx.attr.coverage_instrumentation,
+        jacoco_agent = ctx.attr.jacoco_agent,
         enable_stats_file = enable_stats_file,
         use_argument_file_in_runner = ctx.attr.use_argument_file_in_runner,
     )
@@ -134,6 +140,18 @@ scala_toolchain = rule(
         "jacocorunner": attr.label(
             default = Label("@bazel_tools//tools/jdk:JacocoCoverage"),
         ),
+        "coverage_instrumentation_filter": attr.string_list(
+            doc = "Class name patterns of the classes instrumented for coverage, e.g. 'com.example.*'. Exclude patterns with '-'. '*' matches any characters, '?' a single one. Empty instruments all classes",
+        ),
+        "coverage_instrumentation": attr.string(
+            default = "offline",
+            values = ["offline", "agent"],
+            doc = "How classes are instrumented for coverage: 'offline' by an action per target, 'agent' while tests run, by the jacoco_agent",
+        ),
+        "jacoco_agent": attr.label(
+            allow_single_file = [".jar"],
+            doc = "The Jacoco agent jar, e.g. org.jacoco.agent-<version>-runtime.jar, attached to tests with coverage_instrumentation = 'agent'. Its version must match the Jacoco of the jacocorunner",
+        ),
         "enable_stats_file": attr.bool(
             default = True,
             doc = "Enable writing of statsfile",
@@ -9,7 +9,7 @@ import org.scalafmt.util.FileOps
 import scala.annotation.tailrec
 import scala.io.Codec
 
-object ScalafmtWorker extends Worker.Interface {
+object ScalafmtWorker extends Worker.ThreadSafeInterface {
 
   def main(args: Array[String]): Unit = Worker.workerMain(args, ScalafmtWorker)
 
@@ -0,0 +1,63 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Computes the `includes` option of the Jacoco agent for a test, so that the agent only instruments
+ * the classes of the coverage instrumented jars on its classpath, and not every class it loads.
+ *
+ * <p>There's a pattern for each package with a class the filter instruments, rather than one per
+ * class, as the option ends up on the command line of the test. A package pattern also matches its
+ * subpackages, and classes of the same package in other jars: those are instrumented needlessly,
+ * but the coverage runner only reports the classes of the instrumented jars.
+ */
+final class AgentIncludes {
+
+  private AgentIncludes() {}
+
+  /** Writes the includes for the given jars to a file, as the agent takes them. */
+  static void write(ClassFilter filter, Path out, List<Path> jars) throws IOException {
+    Files.write(out, compute(filter, jars).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** The includes for the given jars, patterns separated by ':'. */
+  static String compute(ClassFilter filter, List<Path> jars) throws IOException {
+    Set<String> patterns = new TreeSet<>();
+    for (Path jar : jars) {
+      try (ZipFile zip = new ZipFile(jar.toFile())) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          String name = entries.nextElement().getName();
+          if (!name.endsWith(".class")
+              || name.startsWith("META-INF/")
+              || name.endsWith("module-info.class")
+              || !filter.instruments(name)) {
+            continue;
+          }
+          int slash = name.lastIndexOf('/');
+          if (slash < 0) {
+            // A class without a package, with its companion and nested classes
+            String className = name.substring(0, name.length() - ".class".length());
+            if (className.indexOf('$') > 0) {
+              className = className.substring(0, className.indexOf('$'));
+            }
+            patterns.add(className);
+            patterns.add(className + "$*");
+          } else {
+            patterns.add(name.substring(0, slash).replace('/', '.') + ".*");
+          }
+        }
+      }
+    }
+    return String.join(":", patterns);
+  }
+}
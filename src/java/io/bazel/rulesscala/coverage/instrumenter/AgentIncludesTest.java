@@ -0,0 +1,77 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AgentIncludesTest {
+
+  @Test
+  public void includesThePackagesOfTheClasses() throws Exception {
+    Path jar =
+        jar(
+            "META-INF/MANIFEST.MF",
+            "META-INF/versions/9/com/example/Foo.class",
+            "module-info.class",
+            "com/example/Foo.class",
+            "com/example/Foo$Bar.class",
+            "com/example/sub/Baz.class",
+            "com/example/resource.txt");
+
+    assertEquals(
+        "com.example.*:com.example.sub.*", AgentIncludes.compute(ClassFilter.ALL, list(jar)));
+  }
+
+  @Test
+  public void includesClassesWithoutAPackageByName() throws Exception {
+    Path jar = jar("Main.class", "Main$.class");
+
+    assertEquals("Main:Main$*", AgentIncludes.compute(ClassFilter.ALL, list(jar)));
+  }
+
+  @Test
+  public void onlyIncludesTheClassesTheFilterInstruments() throws Exception {
+    Path first = jar("com/example/Foo.class", "com/example/FooTest.class");
+    Path second = jar("org/example/Bar.class", "org/example/BarTest.class");
+
+    assertEquals(
+        "com.example.*", AgentIncludes.compute(new ClassFilter("com.*"), list(first, second)));
+    assertEquals("", AgentIncludes.compute(new ClassFilter("-*Test"), list(jar("FooTest.class"))));
+  }
+
+  @Test
+  public void writesTheIncludes() throws Exception {
+    Path out = Files.createTempFile("agent_includes", ".txt");
+
+    AgentIncludes.write(ClassFilter.ALL, out, list(jar("com/example/Foo.class")));
+
+    assertEquals("com.example.*", new String(Files.readAllBytes(out), "UTF-8"));
+  }
+
+  private static List<Path> list(Path... jars) {
+    return Arrays.asList(jars);
+  }
+
+  private static Path jar(String... entries) throws IOException {
+    Path jar = Files.createTempFile("agent_includes", ".jar");
+    try (OutputStream out = Files.newOutputStream(jar);
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (String entry : entries) {
+        zip.putNextEntry(new ZipEntry(entry));
+        zip.closeEntry();
+      }
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,75 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes are instrumented, from comma separated patterns of class names like
+ * `com.example.*,-*Test,-com.example.generated.*`. Patterns starting with '-' exclude classes, the
+ * others include them, all classes if there are none. In patterns '*' matches any number of
+ * characters, including none, and '?' a single one, like the includes and excludes of the Jacoco
+ * agent.
+ */
+final class ClassFilter {
+
+  /** Instruments every class. */
+  static final ClassFilter ALL = new ClassFilter("");
+
+  private final List<Pattern> includes = new ArrayList<>();
+  private final List<Pattern> excludes = new ArrayList<>();
+
+  ClassFilter(String patterns) {
+    for (String pattern : patterns.split(",")) {
+      pattern = pattern.trim();
+      if (pattern.startsWith("-")) {
+        excludes.add(toRegex(pattern.substring(1)));
+      } else if (!pattern.isEmpty()) {
+        includes.add(toRegex(pattern));
+      }
+    }
+  }
+
+  /**
+   * Whether the class of a jar entry is instrumented.
+   *
+   * @param entryName the name of the class file in the jar, e.g. `com/example/Foo$Bar.class`
+   */
+  boolean instruments(String entryName) {
+    String name = entryName;
+    if (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    name = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+    return (includes.isEmpty() || matchesAny(includes, name)) && !matchesAny(excludes, name);
+  }
+
+  private static boolean matchesAny(List<Pattern> patterns, String name) {
+    for (Pattern pattern : patterns) {
+      if (pattern.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Pattern toRegex(String wildcard) {
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (char c : wildcard.toCharArray()) {
+      if (c == '*' || c == '?') {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append(c == '*' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
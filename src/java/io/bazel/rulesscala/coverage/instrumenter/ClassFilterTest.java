@@ -0,0 +1,67 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ClassFilterTest {
+
+  @Test
+  public void noPatternsInstrumentEveryClass() {
+    assertTrue(ClassFilter.ALL.instruments("com/example/Foo.class"));
+    assertTrue(new ClassFilter("").instruments("Foo.class"));
+    assertTrue(new ClassFilter(" , ").instruments("com/example/Foo.class"));
+  }
+
+  @Test
+  public void includesAndExcludes() {
+    ClassFilter filter = new ClassFilter("com.example.*, -*Test,-com.example.generated.*");
+    assertTrue(filter.instruments("com/example/Foo.class"));
+    assertTrue(filter.instruments("com/example/sub/Foo.class"));
+    assertFalse(filter.instruments("org/example/Foo.class"));
+    assertFalse(filter.instruments("com/example/FooTest.class"));
+    assertFalse(filter.instruments("com/example/generated/Foo.class"));
+  }
+
+  @Test
+  public void excludesAloneInstrumentEverythingElse() {
+    ClassFilter filter = new ClassFilter("-*Test");
+    assertTrue(filter.instruments("org/example/Foo.class"));
+    assertFalse(filter.instruments("org/example/FooTest.class"));
+  }
+
+  @Test
+  public void questionMarkMatchesASingleCharacter() {
+    ClassFilter filter = new ClassFilter("com.example.Foo?");
+    assertTrue(filter.instruments("com/example/Foo1.class"));
+    assertFalse(filter.instruments("com/example/Foo.class"));
+    assertFalse(filter.instruments("com/example/Foo12.class"));
+  }
+
+  @Test
+  public void nestedClassesAreMatchedByTheirBinaryName() {
+    assertTrue(new ClassFilter("com.example.Foo*").instruments("com/example/Foo$Bar.class"));
+    assertTrue(new ClassFilter("com.example.Foo$Bar").instruments("com/example/Foo$Bar.class"));
+    assertFalse(new ClassFilter("com.example.Foo$Bar").instruments("com/example/Foo.class"));
+    assertFalse(new ClassFilter("-*$anonfun*").instruments("com/example/Foo$$anonfun$1.class"));
+  }
+
+  @Test
+  public void regexMetacharactersAreLiterals() {
+    ClassFilter filter = new ClassFilter("com.example.Foo");
+    assertTrue(filter.instruments("com/example/Foo.class"));
+    assertFalse(filter.instruments("comXexampleXFoo.class"));
+    assertTrue(new ClassFilter("a+b[c](d)^e|f\\g").instruments("a+b[c](d)^e|f\\g.class"));
+    assertFalse(new ClassFilter("a+b").instruments("aab.class"));
+  }
+
+  @Test
+  public void leadingSlashOfEntryNamesIsIgnored() {
+    ClassFilter filter = new ClassFilter("com.example.*");
+    assertTrue(filter.instruments("/com/example/Foo.class"));
+    assertFalse(filter.instruments("/org/example/Foo.class"));
+  }
+}
@@ -0,0 +1,263 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jacoco.core.JaCoCo;
+
+/**
+ * Keeps the instrumented classes of a persistent worker between requests, keyed by a digest of the
+ * uninstrumented class and the Jacoco version, so that unchanged classes aren't instrumented again.
+ *
+ * <p>Off by default, enabled with `-Dcoverage.instrumentation_cache.size_mb=<mb>`. Least recently
+ * used classes are evicted once the cached ones add up to more than that size. With
+ * `-Dcoverage.instrumentation_cache.dir=<dir>` instrumented classes are also written to that
+ * directory, relative to the working directory of the worker, and read back from it once they have
+ * been evicted or the worker restarted. The directory isn't cleaned up unless
+ * `-Dcoverage.instrumentation_cache.dir_size_mb=<mb>` caps its size: once the classes written to it
+ * exceed the cap, the least recently used ones are deleted, whichever worker wrote them.
+ */
+final class InstrumentationCache {
+
+  static final String SIZE_MB_PROPERTY = "coverage.instrumentation_cache.size_mb";
+  static final String DIR_PROPERTY = "coverage.instrumentation_cache.dir";
+  static final String DIR_SIZE_MB_PROPERTY = "coverage.instrumentation_cache.dir_size_mb";
+
+  private static final InstrumentationCache instance =
+      new InstrumentationCache(
+          Long.getLong(SIZE_MB_PROPERTY, 0L) << 20,
+          System.getProperty(DIR_PROPERTY) != null
+              ? Paths.get(System.getProperty(DIR_PROPERTY))
+              : null,
+          Long.getLong(DIR_SIZE_MB_PROPERTY, 0L) << 20);
+
+  private final long maxBytes;
+  private final Path dir;
+  private final long maxDiskBytes;
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  // The size of the disk tier, -1 until it has been measured
+  private long diskBytes = -1;
+
+  /**
+   * @param maxBytes the size of the memory tier, 0 to keep instrumented classes on disk only
+   * @param dir the disk tier, or null
+   * @param maxDiskBytes the size of the disk tier, 0 for no limit
+   */
+  InstrumentationCache(long maxBytes, Path dir, long maxDiskBytes) {
+    this.maxBytes = maxBytes;
+    this.dir = dir;
+    this.maxDiskBytes = maxDiskBytes;
+  }
+
+  /** Returns the cache configured with the JVM flags, or null if it's disabled. */
+  static InstrumentationCache fromSystemProperties() {
+    return instance.maxBytes > 0 || instance.dir != null ? instance : null;
+  }
+
+  /** The hits and misses of a single request. */
+  final class Stats {
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong requestMisses = new AtomicLong();
+
+    String summary() {
+      return String.format(
+          "Instrumentation cache: %d hits (%d from disk), %d misses"
+              + " (%d hits, %d misses since the worker started)",
+          memoryHits.get() + diskHits.get(),
+          diskHits.get(),
+          requestMisses.get(),
+          hits.get(),
+          misses.get());
+    }
+  }
+
+  Stats newStats() {
+    return new Stats();
+  }
+
+  /**
+   * Returns the cached instrumented class, or instruments it and caches the result.
+   *
+   * @param uninstrumented the bytes of the class
+   * @param instrument instruments the class on a miss
+   * @param stats counts the hit or miss
+   */
+  byte[] instrument(byte[] uninstrumented, Callable<byte[]> instrument, Stats stats)
+      throws Exception {
+    String key = key(uninstrumented);
+    byte[] instrumented;
+    synchronized (entries) {
+      instrumented = entries.get(key);
+    }
+    if (instrumented != null) {
+      stats.memoryHits.incrementAndGet();
+      hits.incrementAndGet();
+      return instrumented;
+    }
+    instrumented = readFromDisk(key);
+    if (instrumented != null) {
+      stats.diskHits.incrementAndGet();
+      hits.incrementAndGet();
+    } else {
+      stats.requestMisses.incrementAndGet();
+      misses.incrementAndGet();
+      instrumented = instrument.call();
+      writeToDisk(key, instrumented);
+    }
+    put(key, instrumented);
+    return instrumented;
+  }
+
+  private static String key(byte[] uninstrumented) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(JaCoCo.VERSION.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    byte[] hash = digest.digest(uninstrumented);
+    StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  private Path diskPath(String key) {
+    return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+  }
+
+  /**
+   * The disk tier is best effort, unreadable entries are misses. A hit marks the entry as recently
+   * used, when the size of the disk tier is capped.
+   */
+  private byte[] readFromDisk(String key) {
+    if (dir == null) {
+      return null;
+    }
+    Path path = diskPath(key);
+    try {
+      byte[] instrumented = Files.readAllBytes(path);
+      if (maxDiskBytes > 0) {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+      }
+      return instrumented;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** Writes through a temporary file, so that concurrent workers never read partial entries. */
+  private void writeToDisk(String key, byte[] instrumented) {
+    if (dir == null) {
+      return;
+    }
+    Path path = diskPath(key);
+    Path tmp = null;
+    try {
+      Files.createDirectories(path.getParent());
+      tmp = Files.createTempFile(path.getParent(), key.substring(2), ".tmp");
+      Files.write(tmp, instrumented);
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      if (maxDiskBytes > 0) {
+        trimDisk(instrumented.length);
+      }
+    } catch (IOException e) {
+      // The class is instrumented again next time
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          // Left for the next trim of the directory
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts a class written to the disk tier, and deletes the least recently used classes once the
+   * tier exceeds its size. The size is measured on first use and whenever the tier is trimmed, so
+   * it includes what other workers wrote in the meantime.
+   */
+  private synchronized void trimDisk(long written) throws IOException {
+    if (diskBytes >= 0) {
+      diskBytes += written;
+    }
+    if (diskBytes >= 0 && diskBytes <= maxDiskBytes) {
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+    Files.walkFileTree(
+        dir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            files.add(file);
+            attributes.put(file, attrs);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            // Deleted by another worker
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+    long size = 0;
+    for (Path file : files) {
+      size += attributes.get(file).size();
+    }
+    for (Iterator<Path> it = files.iterator(); size > maxDiskBytes && it.hasNext(); ) {
+      Path file = it.next();
+      Files.deleteIfExists(file);
+      size -= attributes.get(file).size();
+    }
+    diskBytes = size;
+  }
+
+  private void put(String key, byte[] instrumented) {
+    if (instrumented.length > maxBytes) {
+      return;
+    }
+    synchronized (entries) {
+      byte[] previous = entries.put(key, instrumented);
+      if (previous != null) {
+        bytes -= previous.length;
+      }
+      bytes += instrumented.length;
+      Iterator<byte[]> it = entries.values().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        byte[] evicted = it.next();
+        bytes -= evicted.length;
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package io.bazel.rulesscala.coverage.instrumenter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InstrumentationCacheTest {
+
+  private final AtomicInteger instrumented = new AtomicInteger();
+
+  @Test
+  public void instrumentsAClassOnlyOnce() throws Exception {
+    InstrumentationCache cache = new InstrumentationCache(1 << 20, null, 0);
+    InstrumentationCache.Stats stats = cache.newStats();
+
+    assertArrayEquals(instrumented(classBytes(1)), instrument(cache, classBytes(1), stats));
+    assertArrayEquals(instrumented(classBytes(1)), instrument(cache, classBytes(1), stats));
+
+    assertEquals(1, instrumented.get());
+    assertTrue(stats.summary(), stats.summary().startsWith("Instrumentation cache: 1 hits"));
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedClasses() throws Exception {
+    InstrumentationCache cache = new InstrumentationCache(150, null, 0);
+    InstrumentationCache.Stats stats = cache.newStats();
+
+    instrument(cache, classBytes(1), stats);
+    instrument(cache, classBytes(2), stats);
+    instrument(cache, classBytes(2), stats);
+    instrument(cache, classBytes(1), stats);
+
+    assertEquals(3, instrumented.get());
+  }
+
+  @Test
+  public void readsEvictedClassesFromDisk() throws Exception {
+    Path dir = Files.createTempDirectory("instrumentation_cache");
+    InstrumentationCache cache = new InstrumentationCache(150, dir, 0);
+    InstrumentationCache.Stats stats = cache.newStats();
+
+    instrument(cache, classBytes(1), stats);
+    instrument(cache, classBytes(2), stats);
+    byte[] fromDisk = instrument(cache, classBytes(1), stats);
+
+    assertEquals(2, instrumented.get());
+    assertArrayEquals(instrumented(classBytes(1)), fromDisk);
+    assertTrue(
+        stats.summary(),
+        stats.summary().startsWith("Instrumentation cache: 1 hits (1 from disk)"));
+    assertEquals(2, newFiles(dir, new HashSet<>()).size());
+  }
+
+  @Test
+  public void deletesTheLeastRecentlyUsedClassesFromDisk() throws Exception {
+    Path dir = Files.createTempDirectory("instrumentation_cache");
+    InstrumentationCache cache = new InstrumentationCache(0, dir, 250);
+    InstrumentationCache.Stats stats = cache.newStats();
+
+    Set<Path> written = new HashSet<>();
+    for (int i = 0; i < 5; i++) {
+      instrument(cache, classBytes(i), stats);
+      // Older than anything written later, whatever the resolution of file times
+      for (Path file : newFiles(dir, written)) {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000000000000L + i * 1000L));
+      }
+    }
+    assertEquals(2, written.stream().filter(Files::exists).count());
+
+    instrument(cache, classBytes(4), stats);
+    assertEquals(5, instrumented.get());
+    instrument(cache, classBytes(0), stats);
+    assertEquals(6, instrumented.get());
+    // Read more recently than 3, which made room for 0
+    instrument(cache, classBytes(4), stats);
+    assertEquals(6, instrumented.get());
+    instrument(cache, classBytes(3), stats);
+    assertEquals(7, instrumented.get());
+  }
+
+  private byte[] instrument(
+      InstrumentationCache cache, byte[] bytes, InstrumentationCache.Stats stats)
+      throws Exception {
+    Callable<byte[]> instrument =
+        () -> {
+          instrumented.incrementAndGet();
+          return instrumented(bytes);
+        };
+    return cache.instrument(bytes, instrument, stats);
+  }
+
+  /** 100 bytes standing in for a class file. */
+  private static byte[] classBytes(int n) {
+    byte[] bytes = new byte[100];
+    bytes[0] = (byte) n;
+    return bytes;
+  }
+
+  private static byte[] instrumented(byte[] bytes) {
+    byte[] instrumented = bytes.clone();
+    instrumented[1] = 1;
+    return instrumented;
+  }
+
+  /** The files of the directory which aren't in the set yet, which are then added to it. */
+  private static List<Path> newFiles(Path dir, Set<Path> known) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files
+          .filter(Files::isRegularFile)
+          .filter(known::add)
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -1,10 +1,7 @@
 package io.bazel.rulesscala.coverage.instrumenter;
 
-import io.bazel.rulesscala.io_utils.DeleteRecursively;
 import io.bazel.rulesscala.jar.JarCreator;
 import io.bazel.rulesscala.worker.Worker;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
@@ -14,14 +11,36 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.jacoco.core.instr.Instrumenter;
 import org.jacoco.core.runtime.OfflineInstrumentationAccessGenerator;
 
-public final class JacocoInstrumenter implements Worker.Interface {
+public final class JacocoInstrumenter implements Worker.ThreadSafeInterface {
+
+  /** The property setting the number of threads instrumenting classes, shared by all requests. */
+  public static final String INSTRUMENTATION_THREADS_PROPERTY = "coverage.instrumentation_threads";
+
+  private static final ExecutorService instrumentationPool =
+      new ForkJoinPool(
+          Math.max(
+              1,
+              Integer.getInteger(
+                  INSTRUMENTATION_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())));
+
+  // An Instrumenter per thread, as it keeps state while instrumenting a class
+  private static final ThreadLocal<Instrumenter> jacoco =
+      ThreadLocal.withInitial(() -> new Instrumenter(new OfflineInstrumentationAccessGenerator()));
 
   public static void main(String[] args) throws Exception {
     Worker.workerMain(args, new JacocoInstrumenter());
@@ -29,14 +48,28 @@ public final class JacocoInstrumenter implements Worker.Interface {
 
   @Override
   public void work(String[] args) throws Exception {
-    Instrumenter jacoco = new Instrumenter(new OfflineInstrumentationAccessGenerator());
-    processArg(jacoco, args);
+    processArg(args);
   }
 
-  private void processArg(Instrumenter jacoco, String[] args) throws Exception {
+  private void processArg(String[] args) throws Exception {
+    ClassFilter filter = ClassFilter.ALL;
+    if (args.length >= 2 && args[0].equals("--class_filter")) {
+      filter = new ClassFilter(args[1]);
+      args = Arrays.copyOfRange(args, 2, args.length);
+    }
+    if (args.length >= 2 && args[0].equals("--agent_includes")) {
+      List<Path> jars = new ArrayList<>();
+      for (String jar : Arrays.copyOfRange(args, 2, args.length)) {
+        jars.add(Paths.get(jar));
+      }
+      AgentIncludes.write(filter, Paths.get(args[1]), jars);
+      return;
+    }
     if (args.length < 3) {
       throw new Exception(
-          "expected format `in_path out_path src1 src2 ... srcN`  for arguments: "
+          "expected format `[--class_filter patterns] in_path out_path src1 src2 ... srcN`, or"
+              + " `[--class_filter patterns] --agent_includes out_path jar1 jar2 ... jarN`, for"
+              + " arguments: "
               + Arrays.asList(args));
     }
 
@@ -44,16 +77,15 @@ public final class JacocoInstrumenter implements Worker.Interface {
     Path outPath = Paths.get(args[1]);
     String[] srcs = Arrays.copyOfRange(args, 2, args.length);
 
-    // Use a directory for coverage metadata that is unique to each built jar. Avoids
-    // multiple threads performing read/write/delete actions on the instrumented classes directory.
-    Path instrumentedClassesDirectory = getMetadataDirRelativeToJar(outPath);
-    Files.createDirectories(instrumentedClassesDirectory);
-
     JarCreator jarCreator = new JarCreator(outPath);
+    // The instrumented classes by entry name, added to the jar from memory once they are done
+    Map<String, Future<byte[]>> instrumentations = new LinkedHashMap<>();
+    InstrumentationCache cache = InstrumentationCache.fromSystemProperties();
+    InstrumentationCache.Stats stats = cache != null ? cache.newStats() : null;
 
     try (FileSystem inFS = FileSystems.newFileSystem(inPath, (ClassLoader) null)) {
       FileVisitor fileVisitor =
-          createInstrumenterVisitor(jacoco, instrumentedClassesDirectory, jarCreator);
+          createInstrumenterVisitor(jarCreator, instrumentations, filter, cache, stats);
       inFS.getRootDirectories()
           .forEach(
               root -> {
@@ -63,6 +95,10 @@ public final class JacocoInstrumenter implements Worker.Interface {
                   throw new RuntimeException(e);
                 }
               });
+      addInstrumentedClasses(jarCreator, instrumentations);
+      if (stats != null && Worker.verbosity() > 0) {
+        System.err.println(stats.summary());
+      }
 
       /*
        * https://github.com/bazelbuild/bazel/blob/567ca633d016572f5760bfd027c10616f2b8c2e4/src/java_tools/junitrunner/java/com/google/testing/coverage/JacocoCoverageRunner.java#L411
@@ -74,27 +110,32 @@ public final class JacocoInstrumenter implements Worker.Interface {
        * https://github.com/bazelbuild/bazel/blob/567ca633d016572f5760bfd027c10616f2b8c2e4/src/java_tools/junitrunner/java/com/google/testing/coverage/JacocoLCOVFormatter.java#L70
        * Which is then used in the formatter to find the corresponding source file from the set of sources we wrote in all the JARs.
        */
-      Path pathsForCoverage = instrumentedClassesDirectory.resolve("-paths-for-coverage.txt");
-      Files.write(
-          pathsForCoverage,
-          String.join("\n", srcs).getBytes(java.nio.charset.StandardCharsets.UTF_8));
-
       jarCreator.addEntry(
-          instrumentedClassesDirectory.relativize(pathsForCoverage).toString(), pathsForCoverage);
+          "-paths-for-coverage.txt",
+          String.join("\n", srcs).getBytes(java.nio.charset.StandardCharsets.UTF_8));
       jarCreator.setCompression(true);
       jarCreator.execute();
-    } finally {
-      DeleteRecursively.run(instrumentedClassesDirectory);
     }
   }
 
-  // Return the path of the coverage metadata directory relative to the output jar path.
-  private static Path getMetadataDirRelativeToJar(Path outputJar) {
-    return outputJar.resolveSibling(outputJar + "-coverage-metadata");
+  /** Waits for the classes to be instrumented and adds them to the jar. */
+  private static void addInstrumentedClasses(
+      JarCreator jarCreator, Map<String, Future<byte[]>> instrumentations) throws Exception {
+    for (Map.Entry<String, Future<byte[]>> instrumentation : instrumentations.entrySet()) {
+      try {
+        jarCreator.addEntry(instrumentation.getKey(), instrumentation.getValue().get());
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
   }
 
   private SimpleFileVisitor createInstrumenterVisitor(
-      Instrumenter jacoco, Path instrumentedClassesDirectory, JarCreator jarCreator) {
+      JarCreator jarCreator,
+      Map<String, Future<byte[]>> instrumentations,
+      ClassFilter filter,
+      InstrumentationCache cache,
+      InstrumentationCache.Stats stats) {
     return new SimpleFileVisitor<Path>() {
       @Override
       public FileVisitResult visitFile(Path inPath, BasicFileAttributes attrs) {
@@ -119,22 +160,17 @@ public final class JacocoInstrumenter implements Worker.Interface {
 
       private FileVisitResult actuallyVisitFile(Path inPath, BasicFileAttributes attrs)
           throws Exception {
-        if (inPath.toString().endsWith(".class")) {
-          // Create a tempPath (that is independent of the name), to avoid "File name too long"
-          // exceptions.
-          Path tempPath =
-              Files.createTempFile(instrumentedClassesDirectory, "instrumented", ".jar");
-          Files.delete(tempPath);
-
-          try (BufferedInputStream inStream =
-                  new BufferedInputStream(Files.newInputStream(inPath));
-              BufferedOutputStream outStream =
-                  new BufferedOutputStream(
-                      Files.newOutputStream(tempPath, StandardOpenOption.CREATE_NEW)); ) {
-            jacoco.instrument(inStream, outStream, inPath.toString());
-          }
-          jarCreator.addEntry(inPath.toString(), tempPath);
-          jarCreator.addEntry(inPath.toString() + ".uninstrumented", inPath);
+        if (inPath.toString().endsWith(".class") && filter.instruments(inPath.toString())) {
+          String name = inPath.toString();
+          byte[] uninstrumented = Files.readAllBytes(inPath);
+          Callable<byte[]> instrument = () -> jacoco.get().instrument(uninstrumented, name);
+          instrumentations.put(
+              name,
+              instrumentationPool.submit(
+                  cache != null
+                      ? () -> cache.instrument(uninstrumented, instrument, stats)
+                      : instrument));
+          jarCreator.addEntry(name + ".uninstrumented", uninstrumented);
         } else {
           jarCreator.addEntry(inPath.toString(), inPath);
         }
@@ -0,0 +1,114 @@
+package io.bazel.rulesscala.jar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the packages and top level classes of a Jar, which {@link JarCreator} can write as
+ * the last entry of the Jar, so that readers can list them without going through every entry.
+ *
+ * <p>The index is made of UTF-8 lines: a header, the number of entries of the Jar, the index
+ * included, and then the sorted packages, as directory names ending with '/', and class file names.
+ * The number of entries tells an index copied into another Jar, which readers ignore.
+ */
+public final class ClassIndex {
+
+  /** The name of the index entry. */
+  public static final String NAME = "META-INF/CLASS_INDEX.LIST";
+
+  private static final String HEADER = "rules_scala-class-index 1";
+  private static final String ENTRIES = "entries ";
+
+  private final List<String> packages;
+  private final List<String> classFiles;
+
+  private ClassIndex(List<String> packages, List<String> classFiles) {
+    this.packages = Collections.unmodifiableList(packages);
+    this.classFiles = Collections.unmodifiableList(classFiles);
+  }
+
+  /** The packages with top level classes, as directory names ending with '/'. */
+  public List<String> packages() {
+    return packages;
+  }
+
+  /** The class files of top level classes, e.g. `foo/Bar.class` and `foo/Bar$.class`. */
+  public List<String> classFiles() {
+    return classFiles;
+  }
+
+  /**
+   * Whether an entry is the class file of a top level class, rather than of a nested or anonymous
+   * one. Scala objects, whose names end with '$', are top level classes.
+   */
+  public static boolean isTopLevelClassFile(String name) {
+    if (!name.endsWith(".class")) {
+      return false;
+    }
+    int dollar = name.indexOf('$', name.lastIndexOf('/') + 1);
+    return dollar < 0 || dollar == name.length() - ".class".length() - 1;
+  }
+
+  /**
+   * Returns the content of the index of a Jar.
+   *
+   * @param names the names of the other entries of the Jar
+   */
+  static byte[] write(Collection<String> names) {
+    TreeSet<String> lines = new TreeSet<>();
+    for (String name : names) {
+      if (isTopLevelClassFile(name)) {
+        lines.add(name);
+        int slash = name.lastIndexOf('/');
+        if (slash >= 0) {
+          lines.add(name.substring(0, slash + 1));
+        }
+      }
+    }
+    StringBuilder index = new StringBuilder(HEADER).append('\n');
+    index.append(ENTRIES).append(names.size() + 1).append('\n');
+    for (String line : lines) {
+      index.append(line).append('\n');
+    }
+    return index.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads the index of a Jar.
+   *
+   * @return the index, or null if the Jar has none or the one it has wasn't written for it
+   */
+  public static ClassIndex read(ZipFile jar) throws IOException {
+    ZipEntry entry = jar.getEntry(NAME);
+    if (entry == null) {
+      return null;
+    }
+    List<String> packages = new ArrayList<>();
+    List<String> classFiles = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(jar.getInputStream(entry), StandardCharsets.UTF_8))) {
+      if (!HEADER.equals(reader.readLine())) {
+        return null;
+      }
+      String entries = reader.readLine();
+      if (entries == null || !entries.equals(ENTRIES + jar.size())) {
+        return null;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        (line.endsWith("/") ? packages : classFiles).add(line);
+      }
+    }
+    return new ClassIndex(packages, classFiles);
+  }
+}
@@ -0,0 +1,156 @@
+package io.bazel.rulesscala.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.zip.Deflater;
+
+/**
+ * Decides how the entries of a Jar are compressed: which ones are stored rather than deflated,
+ * e.g. because they are compressed already, the deflate level, and whether deflating an entry
+ * saves enough to keep it deflated. The decisions only depend on the name and content of an entry,
+ * so Jars stay deterministic.
+ *
+ * <p>The default policy of {@link JarHelper} is read from system properties, so every tool creating
+ * Jars with it can be configured with JVM flags:
+ *
+ * <ul>
+ *   <li>`jar.compression.stored_extensions`: comma separated file extensions of entries to store,
+ *       e.g. `png,jpg,gz,zip,jar,parquet`
+ *   <li>`jar.compression.level`: the deflate level, from 0 to 9
+ *   <li>`jar.compression.min_savings_percent`: entries are stored unless deflating them saves at
+ *       least this percentage of their size
+ * </ul>
+ */
+public final class CompressionPolicy {
+
+  public static final String STORED_EXTENSIONS_PROPERTY = "jar.compression.stored_extensions";
+  public static final String LEVEL_PROPERTY = "jar.compression.level";
+  public static final String MIN_SAVINGS_PERCENT_PROPERTY = "jar.compression.min_savings_percent";
+
+  /** Deflates every entry at the default level. */
+  public static final CompressionPolicy DEFAULT =
+      new CompressionPolicy(Collections.<String>emptySet(), Deflater.DEFAULT_COMPRESSION, 0);
+
+  private final Set<String> storedExtensions = new HashSet<>();
+  private final int level;
+  private final int minSavingsPercent;
+
+  /**
+   * @param storedExtensions file extensions of entries to store, with or without the leading '.'
+   * @param level the deflate level, from 0 to 9, or -1 for the default level
+   * @param minSavingsPercent entries are stored unless deflating them saves at least this
+   *     percentage of their size, 0 to always keep them deflated
+   */
+  public CompressionPolicy(
+      Collection<String> storedExtensions, int level, int minSavingsPercent) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (minSavingsPercent < 0 || minSavingsPercent > 100) {
+      throw new IllegalArgumentException("Invalid minimum savings percentage: " + minSavingsPercent);
+    }
+    for (String extension : storedExtensions) {
+      String e = extension.trim().toLowerCase(Locale.ROOT);
+      if (e.startsWith(".")) {
+        e = e.substring(1);
+      }
+      if (!e.isEmpty()) {
+        this.storedExtensions.add(e);
+      }
+    }
+    this.level = level;
+    this.minSavingsPercent = minSavingsPercent;
+  }
+
+  /** Returns the policy configured with system properties, or the default one. */
+  public static CompressionPolicy fromSystemProperties() {
+    String extensions = System.getProperty(STORED_EXTENSIONS_PROPERTY, "");
+    int level = Integer.getInteger(LEVEL_PROPERTY, Deflater.DEFAULT_COMPRESSION);
+    int minSavingsPercent = Integer.getInteger(MIN_SAVINGS_PERCENT_PROPERTY, 0);
+    if (extensions.isEmpty() && level == Deflater.DEFAULT_COMPRESSION && minSavingsPercent == 0) {
+      return DEFAULT;
+    }
+    return new CompressionPolicy(Arrays.asList(extensions.split(",")), level, minSavingsPercent);
+  }
+
+  /** The storage method of an entry, if the Jar is compressed. */
+  int method(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot > name.lastIndexOf('/')
+        && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+      return JarEntry.STORED;
+    }
+    return JarEntry.DEFLATED;
+  }
+
+  int level() {
+    return level;
+  }
+
+  /** Whether entries have to be deflated to know if they are kept deflated. */
+  boolean measuresSavings() {
+    return minSavingsPercent > 0;
+  }
+
+  /** Whether an entry deflated to the given size is kept deflated, rather than stored. */
+  boolean keepsDeflated(long size, long compressedSize) {
+    return minSavingsPercent == 0 || compressedSize * 100 <= size * (100 - minSavingsPercent);
+  }
+
+  /**
+   * The size of a file deflated like {@link java.util.zip.ZipOutputStream} does at the level. The
+   * file is read in chunks and the deflated data is only counted, not kept.
+   */
+  long deflatedSize(FileChannel channel) throws IOException {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+      byte[] output = new byte[64 * 1024];
+      long size = 0;
+      long position = 0;
+      int n;
+      while ((n = channel.read(input, position)) >= 0) {
+        position += n;
+        deflater.setInput(input.array(), 0, input.position());
+        while (!deflater.needsInput()) {
+          size += deflater.deflate(output);
+        }
+        input.clear();
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        size += deflater.deflate(output);
+      }
+      return size;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Deflates the content like {@link java.util.zip.ZipOutputStream} at the level. */
+  byte[] deflate(byte[] content) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buffer);
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package io.bazel.rulesscala.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * A Jar file whose entries are copied into another Jar. Besides their content, this gives access
+ * to the compressed data of the entries, as found in the Jar, so that it can be copied without
+ * being decompressed and compressed again.
+ */
+final class InputJar implements Closeable {
+
+  private static final int LOCSIG = 0x04034b50;
+  private static final int CENSIG = 0x02014b50;
+  private static final int ENDSIG = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT = 0xFFFF;
+  private static final long MAGIC_SIZE = 0xFFFFFFFFL;
+  private static final int MAGIC_COUNT = 0xFFFF;
+
+  /** An entry whose compressed data can be copied. */
+  static final class RawEntry {
+    final int method;
+    final long crc;
+    final long compressedSize;
+    final long size;
+    final long localHeaderOffset;
+
+    RawEntry(int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  private final Path path;
+  private final ZipFile zip;
+  private final FileChannel channel;
+  private final Map<String, RawEntry> rawEntries;
+
+  InputJar(Path path) throws IOException {
+    this.path = path;
+    this.zip = new ZipFile(path.toFile());
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.rawEntries = readCentralDirectory();
+  }
+
+  /**
+   * Returns the entry if its compressed data can be copied, or null if it can only be read
+   * decompressed, e.g. because it's encrypted or the Jar uses Zip64.
+   */
+  RawEntry raw(String name) {
+    return rawEntries.get(name);
+  }
+
+  /**
+   * Writes the compressed data of the entry straight from the Jar file, without holding it in
+   * memory. Safe to call from several threads.
+   */
+  void writeRaw(RawEntry entry, OutputStream out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(header, entry.localHeaderOffset);
+    if (header.getInt(0) != LOCSIG) {
+      throw new ZipException("Invalid local header in " + path);
+    }
+    int nameLength = header.getShort(26) & 0xFFFF;
+    int extraLength = header.getShort(28) & 0xFFFF;
+    long start = entry.localHeaderOffset + 30 + nameLength + extraLength;
+    long end = start + entry.compressedSize;
+    if (end > channel.size()) {
+      throw new EOFException("Unexpected end of " + path);
+    }
+    WritableByteChannel target = Channels.newChannel(out);
+    for (long position = start; position < end; ) {
+      position += channel.transferTo(position, end - position, target);
+    }
+  }
+
+  /** Reads the decompressed content of the entry. Safe to call from several threads. */
+  byte[] read(String name) throws IOException {
+    ZipEntry entry = zip.getEntry(name);
+    long size = entry.getSize();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+    byte[] buffer = new byte[8192];
+    try (InputStream in = zip.getInputStream(entry)) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      zip.close();
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new EOFException("Unexpected end of " + path);
+      }
+    }
+  }
+
+  /**
+   * Indexes the entries of the central directory by name. Jars which aren't understood, e.g.
+   * because they use Zip64, have no raw entries, they are only read decompressed.
+   */
+  private Map<String, RawEntry> readCentralDirectory() throws IOException {
+    long size = channel.size();
+    int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT);
+    ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(tail, size - tailSize);
+
+    int end = tailSize - END_SIZE;
+    while (end >= 0 && tail.getInt(end) != ENDSIG) {
+      end--;
+    }
+    if (end < 0) {
+      return Collections.emptyMap();
+    }
+    int count = tail.getShort(end + 10) & 0xFFFF;
+    long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+    long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+    if (count == MAGIC_COUNT || directorySize == MAGIC_SIZE || directoryOffset == MAGIC_SIZE) {
+      return Collections.emptyMap();
+    }
+
+    ByteBuffer directory =
+        ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(directory, directoryOffset);
+    Map<String, RawEntry> entries = new HashMap<>(count * 2);
+    int p = 0;
+    for (int i = 0; i < count; i++) {
+      if (directory.getInt(p) != CENSIG) {
+        return Collections.emptyMap();
+      }
+      int flag = directory.getShort(p + 8) & 0xFFFF;
+      int method = directory.getShort(p + 10) & 0xFFFF;
+      long crc = directory.getInt(p + 16) & 0xFFFFFFFFL;
+      long compressedSize = directory.getInt(p + 20) & 0xFFFFFFFFL;
+      long uncompressedSize = directory.getInt(p + 24) & 0xFFFFFFFFL;
+      int nameLength = directory.getShort(p + 28) & 0xFFFF;
+      int extraLength = directory.getShort(p + 30) & 0xFFFF;
+      int commentLength = directory.getShort(p + 32) & 0xFFFF;
+      long localHeaderOffset = directory.getInt(p + 42) & 0xFFFFFFFFL;
+      String name =
+          new String(directory.array(), p + 46, nameLength, StandardCharsets.UTF_8);
+
+      boolean encrypted = (flag & 1) != 0;
+      boolean zip64 =
+          compressedSize == MAGIC_SIZE
+              || uncompressedSize == MAGIC_SIZE
+              || localHeaderOffset == MAGIC_SIZE;
+      if (!encrypted
+          && !zip64
+          && (method == JarEntry.STORED || method == JarEntry.DEFLATED)) {
+        entries.put(
+            name,
+            new RawEntry(method, crc, compressedSize, uncompressedSize, localHeaderOffset));
+      }
+      p += 46 + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+}
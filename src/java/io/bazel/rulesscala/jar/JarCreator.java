@@ -28,11 +28,16 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.Attributes;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * A class for creating Jar files. Allows normalization of Jar entries by setting their timestamp to
@@ -41,8 +46,14 @@ import java.util.jar.Manifest;
 public class JarCreator extends JarHelper {
 
   // Map from Jar entry names to files. Use TreeMap so we can establish a canonical order for the
-  // entries regardless in what order they get added.
+  // entries regardless in what order they get added. Entries added from memory or from input jars
+  // map to null.
   private final TreeMap<String, Path> jarEntries = new TreeMap<>();
+  private final Map<String, byte[]> contents = new HashMap<>();
+  // Map from Jar entry names to the input jars containing them
+  private final Map<String, Path> jarContents = new HashMap<>();
+  // The attributes of the files found walking directories, so they aren't read again
+  private final Map<Path, BasicFileAttributes> walkedAttributes = new HashMap<>();
   private String manifestFile;
   private String mainClass;
   private String targetLabel;
@@ -66,19 +77,23 @@ public class JarCreator extends JarHelper {
    * @return true iff a new entry was added
    */
   public boolean addEntry(String entryName, Path path) {
+    return jarEntries.put(normalizeEntryName(entryName), path) == null;
+  }
+
+  private static String normalizeEntryName(String entryName) {
     if (entryName.startsWith("/")) {
-      entryName = entryName.substring(1);
+      return entryName.substring(1);
     } else if (entryName.length() >= 3
         && Character.isLetter(entryName.charAt(0))
         && entryName.charAt(1) == ':'
         && (entryName.charAt(2) == '\\' || entryName.charAt(2) == '/')) {
       // Windows absolute path, e.g. "D:\foo" or "e:/blah".
       // Windows paths are case-insensitive, and support both backslashes and forward slashes.
-      entryName = entryName.substring(3);
+      return entryName.substring(3);
     } else if (entryName.startsWith("./")) {
-      entryName = entryName.substring(2);
+      return entryName.substring(2);
     }
-    return jarEntries.put(entryName, path) == null;
+    return entryName;
   }
 
   /**
@@ -92,6 +107,56 @@ public class JarCreator extends JarHelper {
     return addEntry(entryName, Paths.get(fileName));
   }
 
+  /**
+   * Adds an entry with the given content to the Jar file, normalizing the name. Directory entries
+   * must include the trailing '/' and have no content.
+   *
+   * @param entryName the name of the entry in the Jar file
+   * @param content the content of the entry
+   * @return true iff a new entry was added
+   */
+  public boolean addEntry(String entryName, byte[] content) {
+    entryName = normalizeEntryName(entryName);
+    boolean added = !jarEntries.containsKey(entryName);
+    jarEntries.put(entryName, null);
+    contents.put(entryName, content);
+    jarContents.remove(entryName);
+    return added;
+  }
+
+  /**
+   * Adds the entries of a Jar file, as if it was extracted into a directory added with {@link
+   * #addDirectory(Path)}: its entries replace entries of the same name, and the parent directories
+   * of its files get entries too. Compressed entries are copied without being decompressed and
+   * compressed again, unless compression is disabled.
+   *
+   * @param jar the Jar file whose entries to add
+   */
+  public void addJarContents(Path jar) throws IOException {
+    try (ZipFile zip = new ZipFile(jar.toFile())) {
+      Enumeration<? extends ZipEntry> e = zip.entries();
+      while (e.hasMoreElements()) {
+        String name = e.nextElement().getName();
+        for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+          String directory = name.substring(0, slash + 1);
+          if (!jarEntries.containsKey(directory)) {
+            addEntry(directory, new byte[0]);
+          }
+        }
+        if (!name.endsWith("/")) {
+          jarEntries.put(name, null);
+          contents.remove(name);
+          jarContents.put(name, jar);
+        }
+      }
+    }
+  }
+
+  /** Whether the Jar file has an entry of the given name, so far. */
+  public boolean containsEntry(String entryName) {
+    return jarEntries.containsKey(entryName);
+  }
+
   /** @deprecated prefer {@link #addDirectory(Path)} */
   @Deprecated
   public void addDirectory(String directory) {
@@ -125,7 +190,7 @@ public class JarCreator extends JarHelper {
               if (!path.equals(directory)) {
                 // For consistency with legacy behaviour, include entries for directories except for
                 // the root.
-                addEntry(path, /* isDirectory= */ true);
+                addEntry(path, attrs, /* isDirectory= */ true);
               }
               return FileVisitResult.CONTINUE;
             }
@@ -133,11 +198,11 @@ public class JarCreator extends JarHelper {
             @Override
             public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
                 throws IOException {
-              addEntry(path, /* isDirectory= */ false);
+              addEntry(path, attrs, /* isDirectory= */ false);
               return FileVisitResult.CONTINUE;
             }
 
-            void addEntry(Path path, boolean isDirectory) {
+            void addEntry(Path path, BasicFileAttributes attrs, boolean isDirectory) {
               StringBuilder sb = new StringBuilder();
               boolean first = true;
               for (Path entry : directory.relativize(path)) {
@@ -152,6 +217,10 @@ public class JarCreator extends JarHelper {
                 sb.append('/');
               }
               jarEntries.put(sb.toString(), path);
+              // Links aren't followed by the walk, their attributes are read when they're copied
+              if (!attrs.isSymbolicLink()) {
+                walkedAttributes.put(path, attrs);
+              }
             }
           });
     } catch (IOException e) {
@@ -240,22 +309,110 @@ public class JarCreator extends JarHelper {
    * @throws IOException if the Jar cannot be written or any of the entries cannot be read.
    */
   public void execute() throws IOException {
+    // Entries of input jars are copied as they are by the ParallelJarWriter, even on one thread,
+    // and it writes the data it deflated to measure the savings instead of deflating it again
+    boolean parallel =
+        compressionThreads > 1 || !jarContents.isEmpty() || compressionPolicy.measuresSavings();
+    if (parallel && jarEntries.size() + 2 < ParallelJarWriter.MAX_ENTRIES) {
+      try {
+        executeParallel();
+        return;
+      } catch (ParallelJarWriter.UnsupportedJarException e) {
+        // Write it again on this thread
+        names.clear();
+      }
+    }
+
+    Map<Path, InputJar> inputJars = openInputJars();
     try (OutputStream os = Files.newOutputStream(jarPath);
         BufferedOutputStream bos = new BufferedOutputStream(os);
         JarOutputStream out = new JarOutputStream(bos)) {
+      out.setLevel(compressionPolicy.level());
 
       // Create the manifest entry in the Jar file
       writeManifestEntry(out, manifestContent());
 
       for (Map.Entry<String, Path> entry : jarEntries.entrySet()) {
-        copyEntry(out, entry.getKey(), entry.getValue());
+        String name = entry.getKey();
+        if (classIndex && name.equals(ClassIndex.NAME)) {
+          // Written last, for the entries of this jar
+          continue;
+        }
+        if (entry.getValue() != null) {
+          copyEntry(out, name, entry.getValue(), walkedAttributes.get(entry.getValue()));
+        } else if (contents.containsKey(name)) {
+          writeEntry(out, name, contents.get(name));
+        } else {
+          copyJarEntry(out, name, inputJars.get(jarContents.get(name)));
+        }
       }
+      if (classIndex) {
+        writeClassIndex(out);
+      }
+    } finally {
+      closeAll(inputJars);
+    }
+  }
+
+  private void executeParallel() throws IOException {
+    int threads = Math.max(1, compressionThreads);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    Map<Path, InputJar> inputJars = openInputJars();
+    try (OutputStream os = Files.newOutputStream(jarPath);
+        BufferedOutputStream bos = new BufferedOutputStream(os);
+        ParallelJarWriter out = new ParallelJarWriter(bos, pool, 4 * threads, compressionPolicy)) {
+
+      writeManifestEntry(out, manifestContent());
+
+      for (Map.Entry<String, Path> entry : jarEntries.entrySet()) {
+        String name = entry.getKey();
+        if (classIndex && name.equals(ClassIndex.NAME)) {
+          // Written last, for the entries of this jar
+          continue;
+        }
+        if (entry.getValue() != null) {
+          copyEntry(out, name, entry.getValue(), walkedAttributes.get(entry.getValue()));
+        } else if (contents.containsKey(name)) {
+          writeEntry(out, name, contents.get(name));
+        } else {
+          copyJarEntry(out, name, inputJars.get(jarContents.get(name)));
+        }
+      }
+      if (classIndex) {
+        writeClassIndex(out);
+      }
+      out.finish();
+    } finally {
+      pool.shutdownNow();
+      closeAll(inputJars);
+    }
+  }
+
+  private Map<Path, InputJar> openInputJars() throws IOException {
+    Map<Path, InputJar> inputJars = new HashMap<>();
+    try {
+      for (Path jar : jarContents.values()) {
+        if (!inputJars.containsKey(jar)) {
+          inputJars.put(jar, new InputJar(jar));
+        }
+      }
+    } catch (IOException e) {
+      closeAll(inputJars);
+      throw e;
+    }
+    return inputJars;
+  }
+
+  private static void closeAll(Map<Path, InputJar> inputJars) throws IOException {
+    for (InputJar jar : inputJars.values()) {
+      jar.close();
     }
   }
 
   public static void buildJar(String[] args) throws IOException {
     if (args.length < 1) {
-      System.err.println("usage: CreateJar [-m manifest -t label] output [root directories]");
+      System.err.println(
+          "usage: CreateJar [-m manifest -t label] output [root directories and jars]");
       System.exit(1);
     }
 
@@ -282,7 +439,7 @@ public class JarCreator extends JarHelper {
       String thisName = args[i];
       Path f = Paths.get(thisName);
       if (JarHelper.isJar(f)) {
-        createJar.addJar(f);
+        createJar.addJarContents(f);
       } else {
         createJar.addDirectory(f);
       }
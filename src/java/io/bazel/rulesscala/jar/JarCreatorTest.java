@@ -0,0 +1,250 @@
+package io.bazel.rulesscala.jar;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JarCreatorTest {
+
+  @Test
+  public void parallelCompressionWritesTheSameJar() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      Path file = classes.resolve("p" + (i % 7) + "/C" + i + (i % 3 == 0 ? ".class" : ".txt"));
+      Files.createDirectories(file.getParent());
+      Files.write(file, content(random, i % 10 == 0 ? 0 : random.nextInt(20000)));
+    }
+    // Large enough to be streamed into the jar when stored
+    Files.write(classes.resolve("p0/large.bin"), content(random, 3 << 20));
+
+    for (boolean compression : new boolean[] {true, false}) {
+      byte[] serial = createJar(classes, compression, 1);
+      byte[] parallel = createJar(classes, compression, 4);
+      assertArrayEquals("compression: " + compression, serial, parallel);
+    }
+  }
+
+  @Test
+  public void parallelCompressionWritesReadableJar() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Files.createDirectories(classes.resolve("foo"));
+    Files.write(classes.resolve("foo/Bar.class"), content(new Random(1), 5000));
+
+    Path jar = Files.createTempFile("out", ".jar");
+    JarCreator creator = new JarCreator(jar);
+    creator.addDirectory(classes);
+    creator.addEntry("foo/baz.txt", "baz".getBytes(StandardCharsets.UTF_8));
+    creator.setCompressionThreads(4);
+    creator.execute();
+
+    try (JarFile file = new JarFile(jar.toFile())) {
+      assertNotNull(file.getManifest());
+      assertNotNull(file.getEntry("foo/"));
+      assertEquals(5000, file.getEntry("foo/Bar.class").getSize());
+      assertEquals(3, file.getEntry("foo/baz.txt").getSize());
+    }
+  }
+
+  @Test
+  public void jarContentsAreCopiedLikeExtractedOnes() throws IOException {
+    Random random = new Random(7);
+    Path resources = Files.createTempFile("resources", ".jar");
+    Path extracted = Files.createTempDirectory("extracted");
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(resources))) {
+      for (int i = 0; i < 50; i++) {
+        String name = "assets/" + (i % 4) + "/file" + i + ".bin";
+        byte[] content = content(random, random.nextInt(20000));
+        ZipEntry entry = new ZipEntry(name);
+        if (i % 5 == 0) {
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(content.length);
+          CRC32 crc = new CRC32();
+          crc.update(content);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+
+        Path file = extracted.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+      }
+    }
+
+    for (boolean compression : new boolean[] {true, false}) {
+      Path fromDirectory = Files.createTempFile("out", ".jar");
+      JarCreator creator = new JarCreator(fromDirectory);
+      creator.addDirectory(extracted);
+      creator.setCompression(compression);
+      creator.execute();
+
+      Path fromJar = Files.createTempFile("out", ".jar");
+      creator = new JarCreator(fromJar);
+      creator.addJarContents(resources);
+      creator.setCompression(compression);
+      creator.execute();
+
+      assertArrayEquals(
+          "compression: " + compression,
+          Files.readAllBytes(fromDirectory),
+          Files.readAllBytes(fromJar));
+    }
+  }
+
+  @Test
+  public void compressionPolicyDecidesWhichEntriesAreStored() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Random random = new Random(3);
+    Files.createDirectories(classes.resolve("foo"));
+    Files.write(classes.resolve("foo/Bar.class"), content(random, 20000));
+    Files.write(classes.resolve("foo/image.PNG"), content(random, 20000));
+    byte[] noise = new byte[20000];
+    random.nextBytes(noise);
+    Files.write(classes.resolve("foo/noise.bin"), noise);
+
+    CompressionPolicy policy = new CompressionPolicy(Arrays.asList(".png", "gz"), 1, 10);
+    byte[] serial = createJar(classes, policy, 1);
+    assertArrayEquals(serial, createJar(classes, policy, 4));
+
+    Path jar = Files.createTempFile("out", ".jar");
+    Files.write(jar, serial);
+    try (JarFile file = new JarFile(jar.toFile())) {
+      assertEquals(ZipEntry.DEFLATED, file.getEntry("foo/Bar.class").getMethod());
+      assertEquals(ZipEntry.STORED, file.getEntry("foo/image.PNG").getMethod());
+      assertEquals(ZipEntry.STORED, file.getEntry("foo/noise.bin").getMethod());
+    }
+  }
+
+  @Test
+  public void serialWriterMeasuresSavingsLikeTheParallelOne() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Random random = new Random(5);
+    Files.write(classes.resolve("Bar.class"), content(random, 200000));
+    byte[] noise = new byte[200000];
+    random.nextBytes(noise);
+    Files.write(classes.resolve("noise.bin"), noise);
+    CompressionPolicy policy = new CompressionPolicy(Arrays.<String>asList(), 1, 10);
+
+    Path parallel = Files.createTempFile("parallel", ".jar");
+    Files.write(parallel, createJar(classes, policy, 1));
+    Path serial = Files.createTempFile("serial", ".jar");
+    JarHelper helper = new JarHelper(serial);
+    helper.setCompressionPolicy(policy);
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(serial))) {
+      out.setLevel(policy.level());
+      helper.copyEntry(out, "Bar.class", classes.resolve("Bar.class"));
+      helper.copyEntry(out, "noise.bin", classes.resolve("noise.bin"));
+    }
+
+    try (JarFile serialJar = new JarFile(serial.toFile());
+        JarFile parallelJar = new JarFile(parallel.toFile())) {
+      for (String name : Arrays.asList("Bar.class", "noise.bin")) {
+        ZipEntry entry = serialJar.getEntry(name);
+        assertEquals(parallelJar.getEntry(name).getMethod(), entry.getMethod());
+        assertEquals(parallelJar.getEntry(name).getCompressedSize(), entry.getCompressedSize());
+      }
+      assertEquals(ZipEntry.DEFLATED, serialJar.getEntry("Bar.class").getMethod());
+      assertEquals(ZipEntry.STORED, serialJar.getEntry("noise.bin").getMethod());
+    }
+  }
+
+  @Test
+  public void classIndexListsPackagesAndTopLevelClasses() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Files.createDirectories(classes.resolve("foo/bar"));
+    String[] names = {
+      "Top.class",
+      "foo/A.class",
+      "foo/A$.class",
+      "foo/A$B.class",
+      "foo/bar/C$$anon$1.class",
+      "foo/bar/readme.txt",
+      "META-INF/CLASS_INDEX.LIST"
+    };
+    for (String name : names) {
+      Files.createDirectories(classes.resolve(name).getParent());
+      Files.write(classes.resolve(name), new byte[] {1});
+    }
+
+    for (int threads : new int[] {1, 4}) {
+      Path jar = Files.createTempFile("out", ".jar");
+      JarCreator creator = new JarCreator(jar);
+      creator.addDirectory(classes);
+      creator.setClassIndex(true);
+      creator.setCompressionThreads(threads);
+      creator.execute();
+
+      try (JarFile file = new JarFile(jar.toFile())) {
+        ClassIndex index = ClassIndex.read(file);
+        assertNotNull(index);
+        assertEquals(Arrays.asList("foo/"), index.packages());
+        assertEquals(Arrays.asList("Top.class", "foo/A$.class", "foo/A.class"), index.classFiles());
+      }
+    }
+  }
+
+  @Test
+  public void classIndexOfAnotherJarIsIgnored() throws IOException {
+    Path classes = Files.createTempDirectory("classes");
+    Files.createDirectories(classes.resolve("META-INF"));
+    Files.write(classes.resolve("Top.class"), new byte[] {1});
+    Files.write(
+        classes.resolve(ClassIndex.NAME), ClassIndex.write(Arrays.asList("Other.class")));
+
+    Path jar = Files.createTempFile("out", ".jar");
+    JarCreator creator = new JarCreator(jar);
+    creator.addDirectory(classes);
+    creator.execute();
+
+    try (JarFile file = new JarFile(jar.toFile())) {
+      assertNull(ClassIndex.read(file));
+    }
+  }
+
+  private static byte[] createJar(Path classes, boolean compression, int threads)
+      throws IOException {
+    Path jar = Files.createTempFile("out", ".jar");
+    JarCreator creator = new JarCreator(jar);
+    creator.addDirectory(classes);
+    creator.setJarOwner("//foo:bar", null);
+    creator.setCompression(compression);
+    creator.setCompressionThreads(threads);
+    creator.execute();
+    return Files.readAllBytes(jar);
+  }
+
+  private static byte[] createJar(Path classes, CompressionPolicy policy, int threads)
+      throws IOException {
+    Path jar = Files.createTempFile("out", ".jar");
+    JarCreator creator = new JarCreator(jar);
+    creator.addDirectory(classes);
+    creator.setCompressionPolicy(policy);
+    creator.setCompressionThreads(threads);
+    creator.execute();
+    return Files.readAllBytes(jar);
+  }
+
+  /** Somewhat compressible content. */
+  private static byte[] content(Random random, int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(6));
+    }
+    return content;
+  }
+}
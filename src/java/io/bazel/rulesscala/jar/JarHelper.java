@@ -16,8 +16,16 @@ package io.bazel.rulesscala.jar;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.HashSet;
@@ -55,6 +63,12 @@ public class JarHelper {
 
   public static final long DOS_EPOCH_IN_JAVA_TIME = 315561600000L;
 
+  /** The property setting the default number of threads compressing the entries of a Jar. */
+  public static final String COMPRESSION_THREADS_PROPERTY = "jar.compression_threads";
+
+  /** The property enabling the class index by default. */
+  public static final String CLASS_INDEX_PROPERTY = "jar.class_index";
+
   // ZIP timestamps have a resolution of 2 seconds.
   // see http://www.info-zip.org/FAQ.html#limits
   public static final long MINIMUM_TIMESTAMP_INCREMENT = 2000L;
@@ -62,10 +76,16 @@ public class JarHelper {
   // The path to the Jar we want to create
   protected final Path jarPath;
 
+  // Stored files at least this large are streamed into the Jar when compressing in parallel
+  static final long STREAMED_SIZE = 1 << 20;
+
   // The properties to describe how to create the Jar
   protected boolean normalize = true;
   protected int storageMethod = JarEntry.DEFLATED;
   protected boolean verbose = false;
+  protected int compressionThreads = Integer.getInteger(COMPRESSION_THREADS_PROPERTY, 1);
+  protected CompressionPolicy compressionPolicy = CompressionPolicy.fromSystemProperties();
+  protected boolean classIndex = Boolean.getBoolean(CLASS_INDEX_PROPERTY);
 
   // The state needed to create the Jar
   protected final Set<String> names = new HashSet<>();
@@ -75,7 +95,7 @@ public class JarHelper {
   }
 
   public static boolean isJar(Path path) {
-    return path.getFileName().endsWith(".jar") && (Files.isRegularFile(path));
+    return path.getFileName().toString().endsWith(".jar") && (Files.isRegularFile(path));
   }
 
   /**
@@ -96,6 +116,34 @@ public class JarHelper {
     storageMethod = compression ? JarEntry.DEFLATED : JarEntry.STORED;
   }
 
+  /**
+   * Sets the number of threads compressing the Jar file entries. With more than one, entries are
+   * compressed in parallel but still written in order, so the Jar file is the same.
+   *
+   * @param threads the number of threads, defaults to the `jar.compression_threads` property or 1
+   */
+  public void setCompressionThreads(int threads) {
+    this.compressionThreads = threads;
+  }
+
+  /**
+   * Sets how the Jar file entries are compressed, if compression is enabled.
+   *
+   * @param policy the policy, defaults to the one configured with system properties
+   */
+  public void setCompressionPolicy(CompressionPolicy policy) {
+    this.compressionPolicy = policy;
+  }
+
+  /**
+   * Enables or disables the class index, which lists the packages and top level classes of the Jar.
+   *
+   * @param classIndex if true writes a {@link ClassIndex}, defaults to the `jar.class_index` property
+   */
+  public void setClassIndex(boolean classIndex) {
+    this.classIndex = classIndex;
+  }
+
   /**
    * Enables or disables verbose messages.
    *
@@ -134,6 +182,13 @@ public class JarHelper {
     return normalize ? normalizedTimestamp(filename) : System.currentTimeMillis();
   }
 
+  /** Returns the storage method of a non empty entry, following the compression policy. */
+  private int storageMethod(String name) {
+    return storageMethod == JarEntry.DEFLATED
+        ? compressionPolicy.method(name)
+        : JarEntry.STORED;
+  }
+
   /**
    * Writes an entry with specific contents to the jar. Directory entries must include the trailing
    * '/'.
@@ -150,19 +205,38 @@ public class JarHelper {
         entry.setCrc(0);
         out.putNextEntry(entry);
       } else {
-        entry.setMethod(storageMethod);
-        if (storageMethod == JarEntry.STORED) {
-          CRC32 crc = new CRC32();
-          crc.update(content);
-          entry.setCrc(crc.getValue());
-        }
-        out.putNextEntry(entry);
-        out.write(content);
+        putEntry(out, entry, content);
       }
       out.closeEntry();
     }
   }
 
+  /** Writes a non empty entry with its contents, stored or deflated by the compression policy. */
+  private void putEntry(JarOutputStream out, JarEntry entry, byte[] content) throws IOException {
+    int method = storageMethod(entry.getName());
+    if (method == JarEntry.DEFLATED
+        && compressionPolicy.measuresSavings()
+        && !compressionPolicy.keepsDeflated(
+            content.length, compressionPolicy.deflate(content).length)) {
+      method = JarEntry.STORED;
+    }
+    entry.setMethod(method);
+    if (method == JarEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(content);
+  }
+
+  /** Like {@link #writeEntry(JarOutputStream, String, byte[])}, compressing in parallel. */
+  void writeEntry(ParallelJarWriter out, String name, byte[] content) throws IOException {
+    if (names.add(name)) {
+      out.add(name, newEntryTimeMillis(name), storageMethod(name), () -> content);
+    }
+  }
+
   /**
    * Writes a standard Java manifest entry into the JarOutputStream. This includes the directory
    * entry for the "META-INF" directory
@@ -185,16 +259,51 @@ public class JarHelper {
     }
   }
 
+  /** Like {@link #writeManifestEntry(JarOutputStream, byte[])}, compressing in parallel. */
+  void writeManifestEntry(ParallelJarWriter out, byte[] content) throws IOException {
+    int oldStorageMethod = storageMethod;
+    if (content.length < 256) {
+      storageMethod = JarEntry.STORED;
+    }
+    try {
+      writeEntry(out, MANIFEST_DIR, new byte[] {});
+      writeEntry(out, MANIFEST_NAME, content);
+    } finally {
+      storageMethod = oldStorageMethod;
+    }
+  }
+
+  /** Writes the {@link ClassIndex} of the entries written so far, which must be the last one. */
+  protected void writeClassIndex(JarOutputStream out) throws IOException {
+    writeEntry(out, ClassIndex.NAME, ClassIndex.write(names));
+  }
+
+  /** Like {@link #writeClassIndex(JarOutputStream)}, compressing in parallel. */
+  void writeClassIndex(ParallelJarWriter out) throws IOException {
+    writeEntry(out, ClassIndex.NAME, ClassIndex.write(names));
+  }
+
   /**
    * Copies file or directory entries from the file system into the jar. Directory entries will be
    * detected and their names automatically '/' suffixed.
    */
   protected void copyEntry(JarOutputStream out, String name, Path path) throws IOException {
+    copyEntry(out, name, path, null);
+  }
+
+  /**
+   * Like {@link #copyEntry(JarOutputStream, String, Path)}, with the attributes of the file if they
+   * are known already, e.g. from walking a directory. The file is then only opened, not checked
+   * again.
+   */
+  protected void copyEntry(
+      JarOutputStream out, String name, Path path, BasicFileAttributes attributes)
+      throws IOException {
     if (!names.contains(name)) {
-      if (!Files.exists(path)) {
-        throw new FileNotFoundException(path.toAbsolutePath() + " (No such file or directory)");
+      if (attributes == null) {
+        attributes = readAttributes(path);
       }
-      boolean isDirectory = Files.isDirectory(path);
+      boolean isDirectory = attributes.isDirectory();
       if (isDirectory && !name.endsWith("/")) {
         name = name + '/'; // always normalize directory names before checking set
       }
@@ -203,10 +312,10 @@ public class JarHelper {
           System.err.println("adding " + path);
         }
         // Create a new entry
-        long size = isDirectory ? 0 : Files.size(path);
+        long size = isDirectory ? 0 : attributes.size();
         JarEntry outEntry = new JarEntry(name);
         long newtime =
-            normalize ? normalizedTimestamp(name) : Files.getLastModifiedTime(path).toMillis();
+            normalize ? normalizedTimestamp(name) : attributes.lastModifiedTime().toMillis();
         outEntry.setTime(newtime);
         outEntry.setSize(size);
         if (size == 0L) {
@@ -214,25 +323,150 @@ public class JarHelper {
           outEntry.setCrc(0);
           out.putNextEntry(outEntry);
         } else {
-          outEntry.setMethod(storageMethod);
-          if (storageMethod == JarEntry.STORED) {
-            // ZipFile requires us to calculate the CRC-32 for any STORED entry.
-            // It would be nicer to do this via DigestInputStream, but
-            // the architecture of ZipOutputStream requires us to know the CRC-32
-            // before we write the data to the stream.
-            byte[] bytes = Files.readAllBytes(path);
-            CRC32 crc = new CRC32();
-            crc.update(bytes);
-            outEntry.setCrc(crc.getValue());
-            out.putNextEntry(outEntry);
-            out.write(bytes);
-          } else {
+          int method = storageMethod(name);
+          try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // Whether deflating saves enough is only known once it's done, the deflated data is
+            // only counted since JarOutputStream deflates it again
+            if (method == JarEntry.DEFLATED && compressionPolicy.measuresSavings()) {
+              long deflatedSize = compressionPolicy.deflatedSize(channel);
+              if (!compressionPolicy.keepsDeflated(size, deflatedSize)) {
+                method = JarEntry.STORED;
+              }
+            }
+            outEntry.setMethod(method);
+            if (method == JarEntry.STORED) {
+              // ZipFile requires us to calculate the CRC-32 for any STORED entry.
+              // It would be nicer to do this via DigestInputStream, but
+              // the architecture of ZipOutputStream requires us to know the CRC-32
+              // before we write the data to the stream. So the file is read twice, in chunks,
+              // rather than held in memory.
+              outEntry.setCrc(crc32(channel));
+            }
             out.putNextEntry(outEntry);
-            Files.copy(path, out);
+            transfer(channel, out);
           }
         }
         out.closeEntry();
       }
     }
   }
+
+  /**
+   * Like {@link #copyEntry(JarOutputStream, String, Path, BasicFileAttributes)}, compressing in
+   * parallel. The file is read on the thread compressing it.
+   */
+  void copyEntry(ParallelJarWriter out, String name, Path path, BasicFileAttributes attributes)
+      throws IOException {
+    if (!names.contains(name)) {
+      if (attributes == null) {
+        attributes = readAttributes(path);
+      }
+      boolean isDirectory = attributes.isDirectory();
+      if (isDirectory && !name.endsWith("/")) {
+        name = name + '/'; // always normalize directory names before checking set
+      }
+      if (names.add(name)) {
+        if (verbose) {
+          System.err.println("adding " + path);
+        }
+        long newtime =
+            normalize ? normalizedTimestamp(name) : attributes.lastModifiedTime().toMillis();
+        long size = isDirectory ? 0 : attributes.size();
+        int method = storageMethod(name);
+        if (method == JarEntry.STORED && size >= STREAMED_SIZE) {
+          // Large stored files are copied straight from the file, instead of through memory
+          out.addStored(
+              name,
+              newtime,
+              size,
+              () -> {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                  return crc32(channel);
+                }
+              },
+              target -> {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                  transfer(channel, target);
+                }
+              });
+        } else {
+          out.add(
+              name,
+              newtime,
+              method,
+              isDirectory ? () -> new byte[0] : () -> Files.readAllBytes(path));
+        }
+      }
+    }
+  }
+
+  /** Computes the CRC-32 of a file, reading it in chunks. */
+  static long crc32(FileChannel channel) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long position = 0;
+    int n;
+    while ((n = channel.read(buffer, position)) >= 0) {
+      buffer.flip();
+      crc.update(buffer);
+      buffer.clear();
+      position += n;
+    }
+    return crc.getValue();
+  }
+
+  /** Writes the content of a file to the stream, without holding it in memory. */
+  static void transfer(FileChannel channel, OutputStream out) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long size = channel.size();
+    long position = 0;
+    while (position < size) {
+      position += channel.transferTo(position, size - position, target);
+    }
+  }
+
+  /** Reads the attributes of a file, following symbolic links. */
+  private static BasicFileAttributes readAttributes(Path path) throws IOException {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException(path.toAbsolutePath() + " (No such file or directory)");
+    }
+  }
+
+  /** Copies a file entry of an input Jar into the jar, decompressing its content. */
+  void copyJarEntry(JarOutputStream out, String name, InputJar jar) throws IOException {
+    if (!names.contains(name)) {
+      writeEntry(out, name, jar.read(name));
+    }
+  }
+
+  /**
+   * Copies a file entry of an input Jar into the jar. If it's compressed the way the jar is, its
+   * compressed data is copied as it is, otherwise its content is decompressed and compressed again.
+   * Deflated data is copied at the level of the input Jar, if it saves enough.
+   */
+  void copyJarEntry(ParallelJarWriter out, String name, InputJar jar) throws IOException {
+    if (names.add(name)) {
+      long time = newEntryTimeMillis(name);
+      int method = storageMethod(name);
+      InputJar.RawEntry raw = jar.raw(name);
+      if (raw != null
+          && raw.method == method
+          && raw.size > 0
+          && (method == JarEntry.STORED
+              || compressionPolicy.keepsDeflated(raw.size, raw.compressedSize))) {
+        out.addRaw(
+            name,
+            time,
+            raw.method,
+            raw.crc,
+            raw.size,
+            raw.compressedSize,
+            target -> jar.writeRaw(raw, target));
+      } else {
+        out.add(name, time, method, () -> jar.read(name));
+      }
+    }
+  }
 }
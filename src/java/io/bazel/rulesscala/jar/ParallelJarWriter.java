@@ -0,0 +1,391 @@
+package io.bazel.rulesscala.jar;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a Jar file whose entries are compressed in parallel. Each entry is read and deflated into
+ * a buffer on the executor, and the buffers are written in the order the entries were added, with
+ * the same headers {@link java.util.jar.JarOutputStream} writes. The Jar is therefore the same,
+ * byte for byte, as the one written on a single thread.
+ *
+ * <p>Only a bounded number of entries is compressed ahead of the one being written, so the Jar is
+ * never held in memory as a whole. Jars which need Zip64 or extended timestamps are not supported,
+ * see {@link UnsupportedJarException}.
+ */
+final class ParallelJarWriter implements Closeable {
+
+  /** Jars with this many entries or more need Zip64. */
+  static final int MAX_ENTRIES = 0xFFFF;
+
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+  private static final int LOCSIG = 0x04034b50;
+  private static final int EXTSIG = 0x08074b50;
+  private static final int CENSIG = 0x02014b50;
+  private static final int ENDSIG = 0x06054b50;
+  private static final int DATA_DESCRIPTOR = 0x8;
+  private static final int USE_UTF8 = 0x800;
+  private static final byte[] NO_EXTRA = new byte[0];
+  // The extra field JarOutputStream adds to the first entry
+  private static final byte[] JAR_MAGIC = {(byte) 0xFE, (byte) 0xCA, 0, 0};
+
+  /** The content of an entry, read on the executor. */
+  interface Content {
+    byte[] read() throws IOException;
+  }
+
+  /** Computes the CRC-32 of a stored entry, on the executor. */
+  interface Checksum {
+    long crc32() throws IOException;
+  }
+
+  /** Writes the data of an entry into the Jar, as it is stored there. */
+  interface Source {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Thrown for Jars this writer can't write like {@link java.util.jar.JarOutputStream} does. They
+   * have to be written on a single thread instead.
+   */
+  static final class UnsupportedJarException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedJarException(String message) {
+      super(message);
+    }
+  }
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int window;
+  private final CompressionPolicy policy;
+  private final ArrayDeque<Future<Entry>> pending = new ArrayDeque<>();
+  private final List<Entry> written = new ArrayList<>();
+  private long offset = 0;
+
+  /**
+   * @param out the stream the Jar is written to, closed with this writer
+   * @param executor compresses the entries
+   * @param window how many entries may be compressed ahead of the one being written
+   * @param policy the level entries are deflated at, and whether they are kept deflated
+   */
+  ParallelJarWriter(
+      OutputStream out, ExecutorService executor, int window, CompressionPolicy policy) {
+    this.out = out;
+    this.executor = executor;
+    this.window = window;
+    this.policy = policy;
+  }
+
+  /**
+   * Adds an entry. Entries without content are stored, others use the given method.
+   *
+   * @param name the name of the entry, directory entries must include the trailing '/'
+   * @param time the time of the entry in milliseconds since the epoch
+   * @param method {@link JarEntry#DEFLATED} or {@link JarEntry#STORED}
+   * @param content reads the content of the entry
+   */
+  void add(String name, long time, int method, Content content) throws IOException {
+    int dosTime = dosTime(time);
+    submit(() -> compress(name, dosTime, method, content.read()));
+  }
+
+  /**
+   * Adds an entry whose data is already compressed with the method, e.g. copied from another Jar.
+   * The data is written straight into the Jar, without being held in memory.
+   *
+   * @param crc the CRC-32 of the uncompressed content
+   * @param size the size of the uncompressed content, more than 0
+   * @param compressedSize the size of the compressed data
+   * @param data writes the compressed data
+   */
+  void addRaw(
+      String name, long time, int method, long crc, long size, long compressedSize, Source data)
+      throws IOException {
+    int dosTime = dosTime(time);
+    submit(
+        () -> {
+          Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), dosTime);
+          entry.method = method;
+          entry.flag = method == JarEntry.DEFLATED ? USE_UTF8 | DATA_DESCRIPTOR : USE_UTF8;
+          entry.crc = crc;
+          entry.size = size;
+          entry.compressedSize = compressedSize;
+          entry.source = data;
+          return entry;
+        });
+  }
+
+  /** Writes the remaining entries and the central directory. */
+  void finish() throws IOException {
+    while (!pending.isEmpty()) {
+      writeNext();
+    }
+    long directoryOffset = offset;
+    for (Entry entry : written) {
+      writeCentralDirectoryEntry(entry);
+    }
+    long directorySize = offset - directoryOffset;
+    checkSize(offset);
+
+    writeInt(ENDSIG);
+    writeShort(0); // number of this disk
+    writeShort(0); // disk with the start of the central directory
+    writeShort(written.size());
+    writeShort(written.size());
+    writeInt(directorySize);
+    writeInt(directoryOffset);
+    writeShort(0); // comment length
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<Entry> entry : pending) {
+      entry.cancel(true);
+    }
+    pending.clear();
+    out.close();
+  }
+
+  /**
+   * Adds a stored entry whose content is written straight into the Jar, without being held in
+   * memory. Only its CRC-32 is computed on the executor.
+   *
+   * @param size the size of the content, more than 0
+   */
+  void addStored(String name, long time, long size, Checksum checksum, Source source)
+      throws IOException {
+    int dosTime = dosTime(time);
+    submit(
+        () -> {
+          Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), dosTime);
+          entry.method = JarEntry.STORED;
+          entry.flag = USE_UTF8;
+          entry.crc = checksum.crc32();
+          entry.size = size;
+          entry.compressedSize = size;
+          entry.source = source;
+          return entry;
+        });
+  }
+
+  private void submit(Callable<Entry> entry) throws IOException {
+    if (written.size() + pending.size() + 1 >= MAX_ENTRIES) {
+      throw new UnsupportedJarException("Too many entries for a Jar without Zip64");
+    }
+    pending.add(executor.submit(entry));
+    if (pending.size() > window) {
+      writeNext();
+    }
+  }
+
+  private void writeNext() throws IOException {
+    Entry entry = await(pending.remove());
+    if (written.isEmpty()) {
+      entry.extra = JAR_MAGIC;
+    }
+    entry.offset = offset;
+
+    writeInt(LOCSIG);
+    writeShort(entry.version());
+    writeShort(entry.flag);
+    writeShort(entry.method);
+    writeInt(entry.dosTime);
+    if ((entry.flag & DATA_DESCRIPTOR) != 0) {
+      // The CRC-32 and sizes follow the data
+      writeInt(0);
+      writeInt(0);
+      writeInt(0);
+    } else {
+      writeInt(entry.crc);
+      writeInt(entry.compressedSize);
+      writeInt(entry.size);
+    }
+    writeShort(entry.name.length);
+    writeShort(entry.extra.length);
+    writeBytes(entry.name);
+    writeBytes(entry.extra);
+    if (entry.source != null) {
+      writeSource(entry);
+    } else {
+      writeBytes(entry.data);
+    }
+    if ((entry.flag & DATA_DESCRIPTOR) != 0) {
+      writeInt(EXTSIG);
+      writeInt(entry.crc);
+      writeInt(entry.compressedSize);
+      writeInt(entry.size);
+    }
+    checkSize(offset);
+
+    entry.data = null;
+    entry.source = null;
+    written.add(entry);
+  }
+
+  private void writeSource(Entry entry) throws IOException {
+    long[] count = {0};
+    entry.source.writeTo(
+        new FilterOutputStream(out) {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            count[0]++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count[0] += len;
+          }
+        });
+    if (count[0] != entry.compressedSize) {
+      throw new ZipException(
+          String.format(
+              "Expected %d bytes but got %d for %s",
+              entry.compressedSize, count[0], new String(entry.name, StandardCharsets.UTF_8)));
+    }
+    offset += count[0];
+  }
+
+  private void writeCentralDirectoryEntry(Entry entry) throws IOException {
+    writeInt(CENSIG);
+    writeShort(entry.version()); // version made by
+    writeShort(entry.version()); // version needed to extract
+    writeShort(entry.flag);
+    writeShort(entry.method);
+    writeInt(entry.dosTime);
+    writeInt(entry.crc);
+    writeInt(entry.compressedSize);
+    writeInt(entry.size);
+    writeShort(entry.name.length);
+    writeShort(entry.extra.length);
+    writeShort(0); // comment length
+    writeShort(0); // disk number start
+    writeShort(0); // internal file attributes
+    writeInt(0); // external file attributes
+    writeInt(entry.offset);
+    writeBytes(entry.name);
+    writeBytes(entry.extra);
+  }
+
+  private Entry compress(String name, int dosTime, int method, byte[] content) {
+    Entry entry = new Entry(name.getBytes(StandardCharsets.UTF_8), dosTime);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.crc = crc.getValue();
+    entry.size = content.length;
+    byte[] deflated =
+        content.length == 0 || method == JarEntry.STORED ? null : policy.deflate(content);
+    if (deflated == null || !policy.keepsDeflated(content.length, deflated.length)) {
+      entry.method = JarEntry.STORED;
+      entry.flag = USE_UTF8;
+      entry.data = content;
+    } else {
+      entry.method = JarEntry.DEFLATED;
+      entry.flag = USE_UTF8 | DATA_DESCRIPTOR;
+      entry.data = deflated;
+    }
+    entry.compressedSize = entry.data.length;
+    return entry;
+  }
+
+  /** The MS-DOS date and time {@link java.util.zip.ZipEntry#setTime(long)} records. */
+  private static int dosTime(long time) throws UnsupportedJarException {
+    LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    if (t.getYear() < 1980 || t.getYear() > 2099) {
+      throw new UnsupportedJarException("Entry time needs an extended timestamp: " + t);
+    }
+    return (t.getYear() - 1980) << 25
+        | t.getMonthValue() << 21
+        | t.getDayOfMonth() << 16
+        | t.getHour() << 11
+        | t.getMinute() << 5
+        | t.getSecond() >> 1;
+  }
+
+  private static Entry await(Future<Entry> entry) throws IOException {
+    try {
+      return entry.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing Jar entries", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static void checkSize(long size) throws UnsupportedJarException {
+    if (size >= MAX_SIZE) {
+      throw new UnsupportedJarException("Jar too large without Zip64");
+    }
+  }
+
+  private void writeShort(int v) throws IOException {
+    out.write(v & 0xff);
+    out.write((v >>> 8) & 0xff);
+    offset += 2;
+  }
+
+  private void writeInt(long v) throws IOException {
+    out.write((int) (v & 0xff));
+    out.write((int) ((v >>> 8) & 0xff));
+    out.write((int) ((v >>> 16) & 0xff));
+    out.write((int) ((v >>> 24) & 0xff));
+    offset += 4;
+  }
+
+  private void writeBytes(byte[] b) throws IOException {
+    out.write(b);
+    offset += b.length;
+  }
+
+  private static final class Entry {
+    final byte[] name;
+    final int dosTime;
+    int method;
+    int flag;
+    long crc;
+    long size;
+    long compressedSize;
+    byte[] extra = NO_EXTRA;
+    byte[] data;
+    Source source;
+    long offset;
+
+    Entry(byte[] name, int dosTime) {
+      this.name = name;
+      this.dosTime = dosTime;
+    }
+
+    int version() {
+      return method == JarEntry.DEFLATED ? 20 : 10;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package io.bazel.rulesscala.scalac;
+
+import java.io.IOException;
+import scala.tools.nsc.Global;
+import scala.tools.nsc.Settings;
+
+/**
+ * The classpath cache needs the classpath API of Scala 2.12.13 and later, see
+ * ClasspathCache213.java. With older versions it is never enabled, and the compiler keeps the
+ * default classpath built from its arguments. The BUILD file picks this variant through
+ * CLASSPATH_CACHE_COMPATIBILITY.
+ */
+final class ClasspathCache {
+
+  private ClasspathCache() {}
+
+  static ClasspathCache fromSystemProperties() {
+    return null;
+  }
+
+  boolean covers(String[] classpath) {
+    return false;
+  }
+
+  /** Leaves the default classpath of the compiler in place, returns a summary saying so. */
+  String install(Global global, Settings settings, String[] classpath) throws IOException {
+    return "Classpath cache: not supported by this Scala version, using the default classpath";
+  }
+
+  void release(Global global) {}
+}
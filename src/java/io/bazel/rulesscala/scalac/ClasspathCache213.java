@@ -0,0 +1,199 @@
+package io.bazel.rulesscala.scalac;
+
+import io.bazel.rulesscala.worker.Worker;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.reflect.io.AbstractFile;
+import scala.tools.nsc.CloseableRegistry;
+import scala.tools.nsc.Global;
+import scala.tools.nsc.Settings;
+import scala.tools.nsc.classpath.AggregateClassPath;
+import scala.tools.nsc.classpath.ZipAndJarClassPathFactory;
+import scala.tools.nsc.util.ClassPath;
+
+/**
+ * Keeps the opened and indexed classpath jars of a persistent worker between compiles, keyed by
+ * path and the digest Bazel sends with each work request, so that a jar is only read again once its
+ * content changed.
+ *
+ * <p>Off by default, enabled with `-Dscalac.classpath_cache.size_mb=<mb>`. Least recently used jars
+ * are evicted once the cached jars add up to more than that size on disk. An evicted jar is closed
+ * once no compiler uses it anymore: a compiler stops using its jars when it's released after its
+ * compile, or, if the compiler cache keeps it, once it has been garbage collected.
+ */
+final class ClasspathCache {
+
+  static final String SIZE_MB_PROPERTY = "scalac.classpath_cache.size_mb";
+
+  private static final ClasspathCache instance =
+      new ClasspathCache(Long.getLong(SIZE_MB_PROPERTY, 0L) << 20);
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+  // Guarded by entries, like the two fields above
+  private final WeakHashMap<Global, List<Entry>> users = new WeakHashMap<>();
+  private final List<Entry> evicted = new ArrayList<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private ClasspathCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the cache configured with the JVM flag, or null if it's disabled. */
+  static ClasspathCache fromSystemProperties() {
+    return instance.maxBytes > 0 ? instance : null;
+  }
+
+  /** Whether every entry of the classpath is a jar whose digest is known to the current request. */
+  boolean covers(String[] classpath) {
+    Map<String, String> digests = Worker.inputDigests();
+    for (String path : classpath) {
+      if (!path.endsWith(".jar") || !digests.containsKey(path)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Appends the cached jars of the classpath to the classpath of a compiler which was created
+   * without one. Returns a summary of the cache hits and misses.
+   */
+  String install(Global global, Settings settings, String[] classpath) throws IOException {
+    Map<String, String> digests = Worker.inputDigests();
+    List<ClassPath> aggregates = new ArrayList<>(classpath.length + 1);
+    aggregates.add(global.classPath());
+
+    // Registered before any jar is taken, so that none is closed under the compiler
+    List<Entry> used = new ArrayList<>(classpath.length);
+    synchronized (entries) {
+      users.put(global, used);
+    }
+
+    int requestHits = 0;
+    for (String path : classpath) {
+      String digest = digests.get(path);
+      Entry entry;
+      synchronized (entries) {
+        entry = entries.get(path);
+        if (entry != null && entry.digest.equals(digest)) {
+          used.add(entry);
+        } else {
+          entry = null;
+        }
+      }
+      if (entry != null) {
+        requestHits++;
+      } else {
+        CloseableRegistry registry = new CloseableRegistry();
+        entry =
+            new Entry(
+                digest, open(path, settings, registry), registry, Files.size(Paths.get(path)));
+        put(path, entry, used);
+      }
+      aggregates.add(entry.classPath);
+    }
+    int requestMisses = classpath.length - requestHits;
+    hits.addAndGet(requestHits);
+    misses.addAndGet(requestMisses);
+
+    global
+        .platform()
+        .currentClassPath_$eq(
+            Option.apply(
+                AggregateClassPath.createAggregate(
+                    JavaConverters.asScalaBuffer(aggregates).toList())));
+
+    return String.format(
+        "Classpath cache: %d hits, %d misses (%d hits, %d misses since the worker started)",
+        requestHits, requestMisses, hits.get(), misses.get());
+  }
+
+  /**
+   * Tells the cache the compiler is discarded, its jars which have since been evicted are closed
+   * unless another compiler still uses them.
+   */
+  void release(Global global) {
+    synchronized (entries) {
+      if (users.remove(global) != null) {
+        closeUnused();
+      }
+    }
+  }
+
+  private static ClassPath open(String path, Settings settings, CloseableRegistry registry) {
+    return ZipAndJarClassPathFactory.create(AbstractFile.getFile(path), settings, registry);
+  }
+
+  private void put(String path, Entry entry, List<Entry> used) {
+    synchronized (entries) {
+      used.add(entry);
+      Entry previous = entries.put(path, entry);
+      if (previous != null) {
+        bytes -= previous.size;
+        evicted.add(previous);
+      }
+      bytes += entry.size;
+      Iterator<Entry> it = entries.values().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        Entry next = it.next();
+        if (next == entry) {
+          break;
+        }
+        bytes -= next.size;
+        it.remove();
+        evicted.add(next);
+      }
+      closeUnused();
+    }
+  }
+
+  /** Closes the evicted jars no compiler uses anymore. Called with the lock on entries held. */
+  private void closeUnused() {
+    if (evicted.isEmpty()) {
+      return;
+    }
+    // Compilers which have been garbage collected are gone from users by now
+    Set<Entry> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (List<Entry> jars : users.values()) {
+      inUse.addAll(jars);
+    }
+    Iterator<Entry> it = evicted.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (!inUse.contains(entry)) {
+        entry.registry.close();
+        it.remove();
+      }
+    }
+  }
+
+  private static final class Entry {
+    final String digest;
+    final ClassPath classPath;
+    final CloseableRegistry registry;
+    final long size;
+
+    Entry(String digest, ClassPath classPath, CloseableRegistry registry, long size) {
+      this.digest = digest;
+      this.classPath = classPath;
+      this.registry = registry;
+      this.size = size;
+    }
+  }
+}
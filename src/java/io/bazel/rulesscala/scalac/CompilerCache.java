@@ -0,0 +1,141 @@
+package io.bazel.rulesscala.scalac;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import scala.collection.JavaConverters$;
+import scala.tools.nsc.Global;
+
+/**
+ * Keeps warm compiler instances between the work requests of a persistent worker, so that the
+ * symbols of the classpath aren't loaded again for every compile.
+ *
+ * <p>Instances are keyed by the compiler arguments and remember the digests of their classpath and
+ * plugin jars. When a classpath jar changed since the instance was last used, only the packages
+ * defined in that jar are reloaded. A changed plugin jar discards the instance. The symbols an
+ * instance entered from sources are unlinked before it's checked in, so that only the symbols of
+ * the classpath are carried over to the next compile.
+ *
+ * <p>Off by default, enabled with `-Dscalac.compiler_cache.size=<n>`, the maximum number of cached
+ * instances. Instances are softly referenced, so the JVM reclaims them before running out of heap.
+ */
+final class CompilerCache {
+
+  static final String SIZE_PROPERTY = "scalac.compiler_cache.size";
+
+  private static final CompilerCache instance =
+      new CompilerCache(Integer.getInteger(SIZE_PROPERTY, 0));
+
+  private final int maxSize;
+  private final LinkedHashMap<String, SoftReference<Entry>> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+
+  CompilerCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Returns the cache configured with the JVM flag, or null if it's disabled. */
+  static CompilerCache fromSystemProperties() {
+    return instance.maxSize > 0 ? instance : null;
+  }
+
+  /**
+   * Removes and returns the compiler cached for the key, with its classpath refreshed to the given
+   * digests. Returns null on a miss. A compiler is never handed out twice, so concurrent requests
+   * with the same key don't share an instance.
+   */
+  Global checkout(String key, Digests digests) {
+    if (digests == null) {
+      return null;
+    }
+    SoftReference<Entry> ref;
+    synchronized (entries) {
+      ref = entries.remove(key);
+    }
+    Entry entry = ref != null ? ref.get() : null;
+    if (entry == null || !entry.digests.plugins.equals(digests.plugins)) {
+      return null;
+    }
+
+    List<String> changed = new ArrayList<>();
+    for (Map.Entry<String, String> jar : digests.classpath.entrySet()) {
+      if (!jar.getValue().equals(entry.digests.classpath.get(jar.getKey()))) {
+        changed.add(jar.getKey());
+      }
+    }
+    if (!changed.isEmpty()) {
+      // Scala 2.11 has no static forwarders on JavaConverters
+      entry.global.invalidateClassPathEntries(
+          JavaConverters$.MODULE$.asScalaBufferConverter(changed).asScala().toList());
+    }
+    return entry.global;
+  }
+
+  /** Makes the compiler available to later requests, evicting the least recently used ones. */
+  void checkin(String key, Global global, Digests digests) {
+    if (digests == null) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key, new SoftReference<>(new Entry(global, digests)));
+      Iterator<SoftReference<Entry>> it = entries.values().iterator();
+      while (it.hasNext() && entries.size() > maxSize) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  /** The digests of the jars a compiler has loaded. */
+  static final class Digests {
+    private final Map<String, String> classpath;
+    private final Map<String, String> plugins;
+
+    private Digests(Map<String, String> classpath, Map<String, String> plugins) {
+      this.classpath = classpath;
+      this.plugins = plugins;
+    }
+
+    /**
+     * Looks up the digests of the given jars in the digests Bazel sent with the work request.
+     * Returns null if any of them is unknown, in which case the compiler can't be cached.
+     */
+    static Digests of(Map<String, String> inputs, String[] classpath, String[] plugins) {
+      Map<String, String> classpathDigests = lookup(inputs, classpath);
+      Map<String, String> pluginDigests = lookup(inputs, plugins);
+      if (classpathDigests == null || pluginDigests == null) {
+        return null;
+      }
+      return new Digests(classpathDigests, pluginDigests);
+    }
+
+    private static Map<String, String> lookup(Map<String, String> inputs, String[] paths) {
+      Map<String, String> digests = new HashMap<>();
+      for (String path : paths) {
+        if (path.isEmpty()) {
+          continue;
+        }
+        String digest = inputs.get(path);
+        if (digest == null) {
+          return null;
+        }
+        digests.put(path, digest);
+      }
+      return digests;
+    }
+  }
+
+  private static final class Entry {
+    final Global global;
+    final Digests digests;
+
+    Entry(Global global, Digests digests) {
+      this.global = global;
+      this.digests = digests;
+    }
+  }
+}
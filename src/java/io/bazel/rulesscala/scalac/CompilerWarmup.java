@@ -0,0 +1,232 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.io.File.pathSeparator;
+
+import io.bazel.rulesscala.io_utils.DeleteRecursively;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles a small synthetic source set a few times on a background thread when a persistent
+ * worker starts, so that the compiler is JIT compiled by the time (or while) the first real
+ * requests are served.
+ *
+ * <p>Off by default, enabled with `-Dscalac.warmup.iterations=<n>`. Timings are written to the
+ * worker log.
+ */
+final class CompilerWarmup {
+
+  static final String ITERATIONS_PROPERTY = "scalac.warmup.iterations";
+
+  /** Runs a single compile with the given compiler arguments, discarding its messages. */
+  interface Compile {
+    void run(String[] args) throws Exception;
+  }
+
+  private CompilerWarmup() {}
+
+  /**
+   * Starts the warm-up thread when enabled. The classpath is built from the jars containing the
+   * given library classes.
+   *
+   * <p>Called from `Worker.Interface.persistentWorkerStarted`, once the worker has redirected
+   * stdout and stderr: the compiler initializes `scala.Console` from them the first time it's used,
+   * and would otherwise hold on to the real ones, which carry the work responses.
+   */
+  static void startIfEnabled(Compile compile, Class<?>... libraryClasses) {
+    int iterations = Integer.getInteger(ITERATIONS_PROPERTY, 0);
+    if (iterations <= 0) {
+      return;
+    }
+
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                run(iterations, compile, libraryClasses);
+              } catch (Exception e) {
+                System.err.println("Compiler warm-up failed: " + e);
+              }
+            },
+            "scalac-warmup");
+    thread.setDaemon(true);
+    // Compiles of real requests take precedence
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  private static void run(int iterations, Compile compile, Class<?>... libraryClasses)
+      throws Exception {
+    Path workdir = Files.createTempDirectory("scalac-warmup");
+    try {
+      Path classes = Files.createDirectories(workdir.resolve("classes"));
+      List<String> args = new ArrayList<>();
+      args.add("-classpath");
+      args.add(classpath(libraryClasses));
+      args.add("-d");
+      args.add(classes.toString());
+      for (int i = 0; i < SOURCES.length; i++) {
+        Path source = workdir.resolve("Warmup" + i + ".scala");
+        Files.write(source, SOURCES[i].getBytes(StandardCharsets.UTF_8));
+        args.add(source.toString());
+      }
+      String[] compilerArgs = args.toArray(new String[0]);
+
+      long start = System.nanoTime();
+      long first = 0;
+      long last = 0;
+      for (int i = 0; i < iterations; i++) {
+        long iterationStart = System.nanoTime();
+        compile.run(compilerArgs);
+        last = (System.nanoTime() - iterationStart) / 1_000_000;
+        if (i == 0) {
+          first = last;
+        }
+      }
+      long total = (System.nanoTime() - start) / 1_000_000;
+
+      System.err.println(
+          String.format(
+              "Compiler warm-up: %d compiles in %dms, first took %dms, last took %dms (%.1fx faster)",
+              iterations, total, first, last, last == 0 ? 1.0 : (double) first / last));
+    } finally {
+      DeleteRecursively.run(workdir);
+    }
+  }
+
+  private static String classpath(Class<?>... libraryClasses) throws URISyntaxException {
+    List<String> entries = new ArrayList<>();
+    for (Class<?> c : libraryClasses) {
+      entries.add(
+          Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI()).toString());
+    }
+    return String.join(pathSeparator, entries);
+  }
+
+  // Sources shaped like typical application code (case classes, pattern matching, implicits,
+  // collections, for comprehensions), restricted to syntax every supported Scala version accepts.
+  private static final String[] SOURCES = {
+    String.join(
+        "\n",
+        "package warmup",
+        "",
+        "sealed trait Shape { def area: Double }",
+        "final case class Circle(radius: Double) extends Shape {",
+        "  def area: Double = math.Pi * radius * radius",
+        "}",
+        "final case class Rect(width: Double, height: Double) extends Shape {",
+        "  def area: Double = width * height",
+        "}",
+        "final case class Group(name: String, shapes: List[Shape]) extends Shape {",
+        "  def area: Double = shapes.map(_.area).sum",
+        "}",
+        "",
+        "object Shapes {",
+        "  def describe(shape: Shape): String = shape match {",
+        "    case Circle(r) if r > 10 => \"big circle\"",
+        "    case Circle(_) => \"circle\"",
+        "    case Rect(w, h) if w == h => \"square\"",
+        "    case Rect(_, _) => \"rectangle\"",
+        "    case Group(name, Nil) => \"empty \" + name",
+        "    case Group(name, shapes) => name + \": \" + shapes.map(describe).mkString(\", \")",
+        "  }",
+        "",
+        "  def largest(shapes: Seq[Shape]): Option[Shape] =",
+        "    if (shapes.isEmpty) None else Some(shapes.maxBy(_.area))",
+        "",
+        "  def byKind(shapes: Seq[Shape]): Map[String, Seq[Shape]] =",
+        "    shapes.groupBy(describe)",
+        "}",
+        ""),
+    String.join(
+        "\n",
+        "package warmup",
+        "",
+        "trait Show[A] { def show(a: A): String }",
+        "",
+        "object Show {",
+        "  def apply[A](implicit s: Show[A]): Show[A] = s",
+        "",
+        "  implicit val intShow: Show[Int] = new Show[Int] { def show(a: Int): String = a.toString }",
+        "  implicit val stringShow: Show[String] = new Show[String] {",
+        "    def show(a: String): String = \"\\\"\" + a + \"\\\"\"",
+        "  }",
+        "  implicit def listShow[A](implicit s: Show[A]): Show[List[A]] = new Show[List[A]] {",
+        "    def show(as: List[A]): String = as.map(s.show).mkString(\"[\", \", \", \"]\")",
+        "  }",
+        "  implicit def optionShow[A](implicit s: Show[A]): Show[Option[A]] =",
+        "    new Show[Option[A]] {",
+        "      def show(a: Option[A]): String = a.fold(\"none\")(x => \"some(\" + s.show(x) + \")\")",
+        "    }",
+        "  implicit def pairShow[A, B](implicit a: Show[A], b: Show[B]): Show[(A, B)] =",
+        "    new Show[(A, B)] {",
+        "      def show(p: (A, B)): String = \"(\" + a.show(p._1) + \", \" + b.show(p._2) + \")\"",
+        "    }",
+        "}",
+        "",
+        "object Rendering {",
+        "  def render[A: Show](a: A): String = Show[A].show(a)",
+        "",
+        "  val samples: List[String] = List(",
+        "    render(1),",
+        "    render(List(1, 2, 3)),",
+        "    render(Option(List(\"a\", \"b\"))),",
+        "    render((1, List(Option(\"x\")))))",
+        "}",
+        ""),
+    String.join(
+        "\n",
+        "package warmup",
+        "",
+        "import scala.collection.mutable",
+        "",
+        "final case class Order(id: Int, customer: String, lines: List[Line])",
+        "final case class Line(sku: String, quantity: Int, price: BigDecimal)",
+        "",
+        "class Inventory(initial: Map[String, Int]) {",
+        "  private val stock = mutable.Map(initial.toSeq: _*)",
+        "",
+        "  def reserve(order: Order): Either[String, Order] = {",
+        "    val missing = for {",
+        "      line <- order.lines",
+        "      available = stock.getOrElse(line.sku, 0)",
+        "      if available < line.quantity",
+        "    } yield line.sku",
+        "    if (missing.nonEmpty) Left(\"missing: \" + missing.mkString(\",\"))",
+        "    else {",
+        "      order.lines.foreach(l => stock.update(l.sku, stock(l.sku) - l.quantity))",
+        "      Right(order)",
+        "    }",
+        "  }",
+        "}",
+        "",
+        "object Reports {",
+        "  def totals(orders: Seq[Order]): Map[String, BigDecimal] =",
+        "    orders",
+        "      .groupBy(_.customer)",
+        "      .map { case (customer, os) =>",
+        "        customer -> os.flatMap(_.lines).map(l => l.price * l.quantity).sum",
+        "      }",
+        "",
+        "  def topSkus(orders: Seq[Order], n: Int): List[(String, Int)] =",
+        "    orders.flatMap(_.lines).groupBy(_.sku).toList",
+        "      .map { case (sku, ls) => (sku, ls.map(_.quantity).sum) }",
+        "      .sortBy { case (sku, q) => (-q, sku) }",
+        "      .take(n)",
+        "",
+        "  def fibs(n: Int): Vector[Long] = {",
+        "    @annotation.tailrec",
+        "    def loop(i: Int, acc: Vector[Long]): Vector[Long] =",
+        "      if (i >= n) acc else loop(i + 1, acc :+ (acc(i - 1) + acc(i - 2)))",
+        "    if (n <= 2) Vector(0L, 1L).take(n) else loop(2, Vector(0L, 1L))",
+        "  }",
+        "}",
+        ""),
+  };
+}
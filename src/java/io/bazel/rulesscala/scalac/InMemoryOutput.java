@@ -0,0 +1,114 @@
+package io.bazel.rulesscala.scalac;
+
+import io.bazel.rulesscala.jar.JarCreator;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Builds the output jar of a compile from memory: class files captured from the compiler and
+ * resources go straight into the jar, instead of through a classes directory which is walked and
+ * deleted again.
+ *
+ * <p>Entries, including the directory entries a classes directory would have produced, are the
+ * same as with a classes directory, so the jar is too. Off by default, enabled with
+ * `-Dscalac.in_memory_output=true`.
+ */
+final class InMemoryOutput {
+
+  static final String PROPERTY = "scalac.in_memory_output";
+
+  private final JarCreator jar;
+
+  InMemoryOutput(Path outputJar, String manifestPath, String stampLabel) {
+    jar = new JarCreator(outputJar);
+    jar.setJarOwner(stampLabel, null);
+    jar.setManifestFile(manifestPath);
+    jar.setNormalize(true);
+    jar.setCompression(true);
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(PROPERTY);
+  }
+
+  /** Adds a directory entry, and entries for its parent directories. */
+  void addDirectory(String name) {
+    if (!name.endsWith("/")) {
+      name = name + "/";
+    }
+    addParentDirectories(name);
+    jar.addEntry(name, new byte[0]);
+  }
+
+  /** Adds a file entry from memory, and entries for its parent directories. */
+  void addFile(String name, byte[] content) {
+    addParentDirectories(name);
+    jar.addEntry(name, content);
+  }
+
+  /** Adds the resources at their target paths, like copying them into a classes directory. */
+  void addResources(String[] sources, String[] targets) {
+    if (sources.length != targets.length)
+      throw new RuntimeException(
+          String.format(
+              "mismatch in resources: sources: %s targets: %s",
+              Arrays.toString(sources), Arrays.toString(targets)));
+
+    for (int i = 0; i < sources.length; i++) {
+      String target = targets[i].replace('\\', '/');
+      if (jar.containsEntry(target)) {
+        throw new RuntimeException("Resource " + target + " conflicts with another file");
+      }
+      addParentDirectories(target);
+      jar.addEntry(target, Paths.get(sources[i]));
+    }
+  }
+
+  /** Adds all entries of the resource jars, copied without decompressing them. */
+  void addResourceJars(String[] resourceJars) throws IOException {
+    for (String jarPath : resourceJars) {
+      jar.addJarContents(Paths.get(jarPath));
+    }
+  }
+
+  /** Adds classpath resources to the root of the jar, see {@link #addClasspathResources}. */
+  void addClasspathResources(String[] classpathResourceFiles) {
+    addClasspathResources(jar, classpathResourceFiles);
+  }
+
+  /**
+   * Adds classpath resources to the root of a jar, once everything else has been added: a class,
+   * resource or resource jar entry of the same name takes precedence, and the conflict is reported.
+   * Also used by the workers when the classes are on disk, so that both ways of building the jar
+   * resolve conflicts the same way.
+   */
+  static void addClasspathResources(JarCreator jar, String[] classpathResourceFiles) {
+    for (String s : classpathResourceFiles) {
+      Path source = Paths.get(s);
+      String name = source.getFileName().toString();
+      if (jar.containsEntry(name) || jar.containsEntry(name + "/")) {
+        System.err.println(
+            "Classpath resource file "
+                + source.getFileName()
+                + " has a namespace conflict with another file: "
+                + name);
+      } else {
+        jar.addEntry(name, source);
+      }
+    }
+  }
+
+  void write() throws IOException {
+    jar.execute();
+  }
+
+  private void addParentDirectories(String name) {
+    int slash = name.indexOf('/');
+    while (slash >= 0 && slash < name.length() - 1) {
+      jar.addEntry(name.substring(0, slash + 1), new byte[0]);
+      slash = name.indexOf('/', slash + 1);
+    }
+  }
+}
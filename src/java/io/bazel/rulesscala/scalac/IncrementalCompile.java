@@ -0,0 +1,537 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.bazel.rulesscala.io_utils.DeleteRecursively;
+import io.bazel.rulesscala.worker.Worker;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Recompiles only the changed sources of a target, as long as their API didn't change.
+ *
+ * <p>The classes of the previous compile of a target are kept in `_scalac_incremental/<target>`
+ * next to its output jar, along with an analysis file recording the digest of every source, the
+ * classes compiled from it and the API of those classes. The API of a class is its Scala signature
+ * (the pickle scalac stores in the class file), which covers every member and inferred type but no
+ * method bodies. A compile is incremental when only source contents changed: the changed sources
+ * are compiled against the classes of the others, and if their API is unchanged the result is
+ * exactly what a full compile would produce. Anything else (different options, classpath jars,
+ * source set, or API) falls back to a full compile.
+ *
+ * <p>Off by default, enabled with `-Dscalac.incremental=true` for persistent workers. Targets with
+ * Java sources, source jars, diagnostics reports, unused dependency checking or the optimizer are
+ * always compiled in full.
+ */
+final class IncrementalCompile {
+
+  static final String PROPERTY = "scalac.incremental";
+
+  /** Compiles the sources into the classes directory, against the given classpath. */
+  interface Compiler {
+    void compile(String[] classpath, String[] sources, Path classes) throws Exception;
+  }
+
+  private final CompileOptions ops;
+  private final Path classes;
+  private final Path analysisFile;
+  private final String key;
+  private final Map<String, String> sourceDigests;
+  private final Map<String, String> sourcesByFileName;
+  private String summary;
+
+  private IncrementalCompile(
+      CompileOptions ops,
+      Path dir,
+      String key,
+      Map<String, String> sourceDigests,
+      Map<String, String> sourcesByFileName) {
+    this.ops = ops;
+    this.classes = dir.resolve("classes");
+    this.analysisFile = dir.resolve("analysis");
+    this.key = key;
+    this.sourceDigests = sourceDigests;
+    this.sourcesByFileName = sourcesByFileName;
+  }
+
+  /** Returns the incremental compile of a request, or null if it has to be compiled in full. */
+  static IncrementalCompile forRequest(String[] args, CompileOptions ops, Path outputJar)
+      throws IOException {
+    if (!Boolean.getBoolean(PROPERTY)
+        || ops.javaFiles.length > 0
+        || String.join("", ops.sourceJars).length() > 0
+        || ops.enableDiagnosticsReport
+        || !"off".equals(ops.unusedDependencyCheckerMode)) {
+      return null;
+    }
+    for (String opt : ops.scalaOpts) {
+      // Inlined method bodies aren't part of the API
+      if (opt.startsWith("-opt") || opt.startsWith("-Yopt")) {
+        return null;
+      }
+    }
+
+    Map<String, String> inputs = Worker.inputDigests();
+    Map<String, String> sourceDigests = new TreeMap<>();
+    Map<String, String> sourcesByFileName = new HashMap<>();
+    for (String source : ops.files) {
+      String digest = inputs.get(source);
+      String fileName = Paths.get(source).getFileName().toString();
+      // Classes only record the file name of their source
+      if (digest == null || sourcesByFileName.put(fileName, source) != null) {
+        return null;
+      }
+      sourceDigests.put(source, digest);
+    }
+
+    MessageDigest key = sha256();
+    update(key, scala.util.Properties.versionNumberString());
+    for (String arg : args) {
+      update(key, arg);
+    }
+    for (String[] jars : new String[][] {ops.classpath, ops.plugins}) {
+      for (String jar : jars) {
+        String digest = inputs.get(jar);
+        if (!jar.isEmpty() && digest == null) {
+          return null;
+        }
+        update(key, jar + "=" + digest);
+      }
+    }
+
+    String label = ops.currentTarget;
+    Path dir =
+        outputJar
+            .resolveSibling("_scalac_incremental")
+            .resolve(label.substring(label.lastIndexOf(':') + 1));
+    return new IncrementalCompile(ops, dir, hex(key.digest()), sourceDigests, sourcesByFileName);
+  }
+
+  /** The directory the classes are compiled to, and kept in between compiles. */
+  Path classes() {
+    return classes;
+  }
+
+  /** What the last call to {@link #compile} did, for the compile time report. */
+  String summary() {
+    return summary;
+  }
+
+  /**
+   * Brings the classes directory up to date with the sources. Returns false if nothing had to be
+   * compiled.
+   */
+  boolean compile(Compiler compiler) throws Exception {
+    Analysis previous = Analysis.read(analysisFile);
+    // Until this compile succeeds, the classes don't match any analysis
+    Files.deleteIfExists(analysisFile);
+
+    List<String> changed =
+        previous != null && Files.isDirectory(classes)
+            ? previous.changedSources(key, sourceDigests)
+            : null;
+    if (changed != null) {
+      Analysis analysis = compileChanged(compiler, previous, changed);
+      if (analysis != null) {
+        summary =
+            String.format(
+                "Incremental compile: recompiled %d of %d sources",
+                changed.size(), sourceDigests.size());
+        analysis.write(analysisFile);
+        return !changed.isEmpty();
+      }
+      summary = "Incremental compile: API changed, recompiled all sources";
+    } else {
+      summary = "Incremental compile: no previous analysis, compiled all sources";
+    }
+
+    if (Files.exists(classes)) {
+      DeleteRecursively.run(classes);
+    }
+    Files.createDirectories(classes);
+    String[] sources = sourceDigests.keySet().toArray(new String[0]);
+    compiler.compile(ops.classpath, sources, classes);
+    Analysis analysis = new Analysis(key, sourceDigests);
+    if (analysis.addClasses(classes, sourcesByFileName)) {
+      analysis.write(analysisFile);
+    }
+    return true;
+  }
+
+  /** Returns the analysis after recompiling the changed sources, or null if their API changed. */
+  private Analysis compileChanged(Compiler compiler, Analysis previous, List<String> changed)
+      throws Exception {
+    Set<String> recompiled = new HashSet<>(changed);
+    Analysis analysis = new Analysis(key, sourceDigests);
+    for (Map.Entry<String, Map<String, String>> source : previous.classes.entrySet()) {
+      if (!recompiled.contains(source.getKey())) {
+        analysis.classes.put(source.getKey(), source.getValue());
+      }
+    }
+    if (changed.isEmpty()) {
+      return analysis;
+    }
+
+    for (String source : changed) {
+      for (String cls : previous.classes.getOrDefault(source, new TreeMap<>()).keySet()) {
+        Files.deleteIfExists(classes.resolve(cls));
+      }
+    }
+    deleteEmptyDirectories(classes);
+
+    String[] classpath = new String[ops.classpath.length + 1];
+    classpath[0] = classes.toString();
+    System.arraycopy(ops.classpath, 0, classpath, 1, ops.classpath.length);
+    compiler.compile(classpath, changed.toArray(new String[0]), classes);
+
+    if (!analysis.addClasses(classes, sourcesByFileName)) {
+      return null;
+    }
+    for (String source : changed) {
+      if (!api(previous.classes.get(source)).equals(api(analysis.classes.get(source)))) {
+        return null;
+      }
+    }
+    return analysis;
+  }
+
+  private static Map<String, String> api(Map<String, String> classes) {
+    Map<String, String> api = new TreeMap<>();
+    if (classes != null) {
+      for (Map.Entry<String, String> cls : classes.entrySet()) {
+        if (!cls.getValue().isEmpty()) {
+          api.put(cls.getKey(), cls.getValue());
+        }
+      }
+    }
+    return api;
+  }
+
+  private static void deleteEmptyDirectories(Path root) throws IOException {
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (!dir.equals(root)) {
+              try (Stream<Path> entries = Files.list(dir)) {
+                if (!entries.findAny().isPresent()) {
+                  Files.delete(dir);
+                }
+              }
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /** Source digests, and the classes compiled from every source with their API hash. */
+  private static final class Analysis {
+    private final String key;
+    private final Map<String, String> sources;
+    // source -> class file path relative to the classes directory -> API hash, empty if none
+    private final Map<String, Map<String, String>> classes = new TreeMap<>();
+
+    Analysis(String key, Map<String, String> sources) {
+      this.key = key;
+      this.sources = sources;
+    }
+
+    /** The sources whose digest changed, or null if the previous compile can't be reused. */
+    List<String> changedSources(String currentKey, Map<String, String> currentSources) {
+      if (!key.equals(currentKey) || !sources.keySet().equals(currentSources.keySet())) {
+        return null;
+      }
+      List<String> changed = new ArrayList<>();
+      for (Map.Entry<String, String> source : currentSources.entrySet()) {
+        if (!source.getValue().equals(sources.get(source.getKey()))) {
+          changed.add(source.getKey());
+        }
+      }
+      return changed;
+    }
+
+    /**
+     * Records the classes found below the directory which aren't recorded yet. Returns false if the
+     * source of a class can't be told.
+     */
+    boolean addClasses(Path root, Map<String, String> sourcesByFileName) throws IOException {
+      Set<String> known = new HashSet<>();
+      for (Map<String, String> recorded : classes.values()) {
+        known.addAll(recorded.keySet());
+      }
+      boolean[] complete = {true};
+      Files.walkFileTree(
+          root,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+              String name = root.relativize(file).toString().replace('\\', '/');
+              if (!name.endsWith(".class") || known.contains(name)) {
+                return FileVisitResult.CONTINUE;
+              }
+              ClassFile cls = ClassFile.read(Files.readAllBytes(file));
+              String source = cls.sourceFile != null ? sourcesByFileName.get(cls.sourceFile) : null;
+              if (source == null) {
+                complete[0] = false;
+                return FileVisitResult.TERMINATE;
+              }
+              classes
+                  .computeIfAbsent(source, s -> new TreeMap<>())
+                  .put(name, cls.signature != null ? hex(sha256(cls.signature)) : "");
+              return FileVisitResult.CONTINUE;
+            }
+          });
+      return complete[0];
+    }
+
+    static Analysis read(Path file) throws IOException {
+      List<String> lines;
+      try {
+        lines = Files.readAllLines(file, UTF_8);
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+      if (lines.isEmpty() || !lines.get(0).startsWith("key\t")) {
+        return null;
+      }
+      Map<String, String> sources = new TreeMap<>();
+      Analysis analysis = new Analysis(lines.get(0).substring(4), sources);
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split("\t", -1);
+        if (fields[0].equals("source") && fields.length == 3) {
+          sources.put(fields[1], fields[2]);
+        } else if (fields[0].equals("class") && fields.length == 4) {
+          analysis
+              .classes
+              .computeIfAbsent(fields[1], s -> new TreeMap<>())
+              .put(fields[2], fields[3]);
+        } else {
+          return null;
+        }
+      }
+      return analysis;
+    }
+
+    void write(Path file) throws IOException {
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)) {
+        writer.write("key\t" + key);
+        writer.newLine();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+          writer.write("source\t" + source.getKey() + "\t" + source.getValue());
+          writer.newLine();
+        }
+        for (Map.Entry<String, Map<String, String>> source : classes.entrySet()) {
+          for (Map.Entry<String, String> cls : source.getValue().entrySet()) {
+            writer.write("class\t" + source.getKey() + "\t" + cls.getKey() + "\t" + cls.getValue());
+            writer.newLine();
+          }
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /** The parts of a class file the analysis needs: its source file name and Scala signature. */
+  static final class ClassFile {
+    final String sourceFile;
+    final byte[] signature;
+
+    private ClassFile(String sourceFile, byte[] signature) {
+      this.sourceFile = sourceFile;
+      this.signature = signature;
+    }
+
+    static ClassFile read(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readInt() != 0xCAFEBABE) {
+        throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor version
+      in.readUnsignedShort(); // major version
+
+      int count = in.readUnsignedShort();
+      byte[][] utf8 = new byte[count][];
+      for (int i = 1; i < count; i++) {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+          case 1: // Utf8
+            utf8[i] = new byte[in.readUnsignedShort()];
+            in.readFully(utf8[i]);
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            in.skipBytes(2);
+            break;
+          case 15: // MethodHandle
+            in.skipBytes(3);
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            in.skipBytes(4);
+            break;
+          case 5: // Long
+          case 6: // Double
+            in.skipBytes(8);
+            i++;
+            break;
+          default:
+            throw new IOException("Unknown constant pool tag " + tag);
+        }
+      }
+
+      in.skipBytes(6); // access flags, this class, super class
+      in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+      for (int members = 0; members < 2; members++) { // fields, then methods
+        int n = in.readUnsignedShort();
+        for (int i = 0; i < n; i++) {
+          in.skipBytes(6); // access flags, name, descriptor
+          skipAttributes(in);
+        }
+      }
+
+      String sourceFile = null;
+      byte[] signature = null;
+      int attributes = in.readUnsignedShort();
+      for (int i = 0; i < attributes; i++) {
+        String name = string(utf8, in.readUnsignedShort());
+        int length = in.readInt();
+        if (name.equals("SourceFile")) {
+          sourceFile = string(utf8, in.readUnsignedShort());
+        } else if (name.equals("RuntimeVisibleAnnotations")) {
+          byte[] found = readSignature(in, utf8);
+          if (found != null) {
+            signature = found;
+          }
+        } else {
+          in.skipBytes(length);
+        }
+      }
+      return new ClassFile(sourceFile, signature);
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+      int n = in.readUnsignedShort();
+      for (int i = 0; i < n; i++) {
+        in.skipBytes(2);
+        in.skipBytes(in.readInt());
+      }
+    }
+
+    /** Returns the bytes of a ScalaSignature or ScalaLongSignature annotation, if there is one. */
+    private static byte[] readSignature(DataInputStream in, byte[][] utf8) throws IOException {
+      byte[] signature = null;
+      int annotations = in.readUnsignedShort();
+      for (int i = 0; i < annotations; i++) {
+        String type = string(utf8, in.readUnsignedShort());
+        boolean scalaSignature =
+            type.equals("Lscala/reflect/ScalaSignature;")
+                || type.equals("Lscala/reflect/ScalaLongSignature;");
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        int pairs = in.readUnsignedShort();
+        for (int j = 0; j < pairs; j++) {
+          in.skipBytes(2); // element name
+          readElementValue(in, utf8, values);
+        }
+        if (scalaSignature) {
+          signature = values.toByteArray();
+        }
+      }
+      return signature;
+    }
+
+    /** Reads an annotation element value, collecting the contents of its string constants. */
+    private static void readElementValue(
+        DataInputStream in, byte[][] utf8, ByteArrayOutputStream strings)
+        throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 's':
+          byte[] value = utf8[in.readUnsignedShort()];
+          strings.write(value, 0, value.length);
+          break;
+        case 'e':
+          in.skipBytes(4);
+          break;
+        case '@':
+          in.skipBytes(2);
+          int pairs = in.readUnsignedShort();
+          for (int i = 0; i < pairs; i++) {
+            in.skipBytes(2);
+            readElementValue(in, utf8, new ByteArrayOutputStream());
+          }
+          break;
+        case '[':
+          int n = in.readUnsignedShort();
+          for (int i = 0; i < n; i++) {
+            readElementValue(in, utf8, strings);
+          }
+          break;
+        default: // other constants and class literals
+          in.skipBytes(2);
+      }
+    }
+
+    private static String string(byte[][] utf8, int index) {
+      return utf8[index] != null ? new String(utf8[index], UTF_8) : "";
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] sha256(byte[] bytes) {
+    return sha256().digest(bytes);
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(Objects.toString(value).getBytes(UTF_8));
+    digest.update((byte) 0);
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
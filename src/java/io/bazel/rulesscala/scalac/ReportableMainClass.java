@@ -1,45 +1,231 @@
 package io.bazel.rulesscala.scalac;
 
+import io.bazel.rulesscala.worker.Worker;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import scala.collection.JavaConverters$;
+import scala.reflect.internal.Symbols;
+import scala.reflect.internal.util.SourceFile;
+import scala.reflect.io.AbstractFile;
+import scala.reflect.io.VirtualFile;
 import scala.tools.nsc.Global;
 import scala.tools.nsc.MainClass;
 import scala.tools.nsc.Settings;
+import scala.tools.nsc.reporters.ConsoleReporter;
 import scala.tools.nsc.reporters.Reporter;
 
 public class ReportableMainClass extends MainClass {
   private Global compiler;
   private Reporter reporter;
   private final CompileOptions ops;
+  private final String[] classpath;
+  private final CompilerCache cache;
+  private final String cacheKey;
+  private final CompilerCache.Digests digests;
+  private final ClasspathCache classpathCache;
+  private Global classpathUser;
+  private List<SourceJars.Entry> sourceJarEntries = Collections.emptyList();
+  private AbstractFile outputDirectory;
 
   public ReportableMainClass(CompileOptions ops) {
+    this(ops, ops.classpath, null, null, null, null);
+  }
+
+  /**
+   * A compiler which is taken from and returned to the cache under the given key, when the cache
+   * is enabled and the digests of the classpath are known. When a classpath cache is given, the
+   * compiler arguments must not contain the classpath, its jars are taken from the cache instead.
+   */
+  ReportableMainClass(
+      CompileOptions ops,
+      String[] classpath,
+      CompilerCache cache,
+      String cacheKey,
+      CompilerCache.Digests digests,
+      ClasspathCache classpathCache) {
     this.ops = ops;
+    this.classpath = classpath;
+    this.cache = digests != null ? cache : null;
+    this.cacheKey = cacheKey;
+    this.digests = digests;
+    this.classpathCache = classpathCache;
   }
 
   @Override
   public Global newCompiler() {
+    if (outputDirectory != null) {
+      super.settings().outputDirs().setSingleOutput(outputDirectory);
+    }
+    if (cache != null) {
+      if (compiler == null) {
+        compiler = cache.checkout(cacheKey, digests);
+        if (compiler == null) {
+          compiler = newUncachedCompiler();
+        } else {
+          reuse(compiler);
+        }
+      }
+      return compiler;
+    }
+    return newUncachedCompiler();
+  }
+
+  /** Source jar entries to compile along with the source files of the compiler arguments. */
+  void setSourceJarEntries(List<SourceJars.Entry> entries) {
+    this.sourceJarEntries = entries;
+  }
+
+  /** An output directory replacing the one of the compiler arguments, e.g. one in memory. */
+  void setOutputDirectory(AbstractFile directory) {
+    this.outputDirectory = directory;
+  }
+
+  /**
+   * Compiles source jar entries from memory. Their positions refer to the entry in the source jar,
+   * and the class files record the entry's file name as their source, as if it had been extracted.
+   */
+  @Override
+  public void doCompile(Global compiler) {
+    if (sourceJarEntries.isEmpty()) {
+      super.doCompile(compiler);
+      return;
+    }
+
+    List<SourceFile> sources = new ArrayList<>();
+    scala.collection.Iterator<String> files = command().files().iterator();
+    while (files.hasNext()) {
+      sources.add(compiler.getSourceFile(files.next()));
+    }
+    for (SourceJars.Entry entry : sourceJarEntries) {
+      VirtualFile file = new VirtualFile(entry.fileName(), entry.path());
+      try (OutputStream out = file.output()) {
+        out.write(entry.content);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read source jar entry " + entry.path(), e);
+      }
+      sources.add(compiler.getSourceFile(file));
+    }
+
+    Global.Run run = compiler.new Run();
+    // Scala 2.11 has no static forwarders on JavaConverters
+    run.compileSources(JavaConverters$.MODULE$.asScalaBufferConverter(sources).asScala().toList());
+    printSummary(reporter);
+  }
+
+  /**
+   * What the superclass does after its run: print the warning and error counts. That's
+   * `Reporter.finish` since Scala 2.12, and `ConsoleReporter.printSummary` before.
+   */
+  private static void printSummary(Reporter reporter) {
+    for (String name : new String[] {"finish", "printSummary"}) {
+      try {
+        reporter.getClass().getMethod(name).invoke(reporter);
+        return;
+      } catch (NoSuchMethodException e) {
+        // not this Scala version
+      } catch (ReflectiveOperationException e) {
+        throw new RuntimeException("Could not print the compile summary", e);
+      }
+    }
+  }
+
+  /** Points a cached compiler at the reporter and output directory of the current request. */
+  private void reuse(Global global) {
+    createDiagnosticsFile(ops.diagnosticsFile);
+    Settings settings = super.settings();
+    reporter = ops.enableDiagnosticsReport ? new ProtoReporter(settings) : super.reporter();
+    cancelOnWorkerCancellation(reporter);
+    global.reporter_$eq(reporter);
+    global.settings().outputDirs().setSingleOutput(settings.outputDirs().getSingleOutput().get());
+  }
+
+  /**
+   * Returns the compiler to the cache. Only compilers whose run completed without errors are
+   * reused, a failed or cancelled run may leave the symbol table in an unknown state.
+   */
+  void release(boolean reusable) {
+    Global global = compiler != null ? compiler : classpathUser;
+    if (cache != null && compiler != null && reusable) {
+      forgetSources(compiler);
+      cache.checkin(cacheKey, compiler, digests);
+    } else if (classpathCache != null && global != null) {
+      // A discarded compiler no longer holds on to the cached jars
+      classpathCache.release(global);
+    }
+    compiler = null;
+    classpathUser = null;
+  }
+
+  /**
+   * Unlinks the top level classes and objects the last run entered from sources from their
+   * packages, as resident compilation does. The next run enters them again from the new versions of
+   * the sources, instead of finding the stale symbols, e.g. a class which has since been deleted.
+   */
+  private static void forgetSources(Global global) {
+    Global.Run run = global.currentRun();
+    if (run == null) {
+      return;
+    }
+    scala.collection.Iterator<Symbols.Symbol> syms = run.symSource().keysIterator();
+    while (syms.hasNext()) {
+      Symbols.Symbol sym = syms.next();
+      sym.owner().rawInfo().decls().unlink(sym);
+    }
+    run.symSource().clear();
+  }
+
+  private Global newUncachedCompiler() {
     if (!ops.enableDiagnosticsReport) {
-      createDiagnosticsFile();
+      createDiagnosticsFile(ops.diagnosticsFile);
       Global global = super.newCompiler();
       reporter = global.reporter();
-      return global;
+      cancelOnWorkerCancellation(reporter);
+      return withCachedClasspath(global);
     }
 
     if (compiler == null) {
-      createDiagnosticsFile();
+      createDiagnosticsFile(ops.diagnosticsFile);
 
       Settings settings = super.settings();
       reporter = new ProtoReporter(settings);
+      cancelOnWorkerCancellation(reporter);
 
-      compiler = new Global(settings, reporter);
+      compiler = withCachedClasspath(new Global(settings, reporter));
     }
     return compiler;
   }
 
-  private void createDiagnosticsFile() {
-    Path path = Paths.get(ops.diagnosticsFile);
+  private Global withCachedClasspath(Global global) {
+    if (classpathCache != null) {
+      try {
+        classpathUser = global;
+        String summary = classpathCache.install(global, super.settings(), classpath);
+        if (ops.printCompileTime) {
+          System.err.println(summary);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read classpath jars", e);
+      }
+    }
+    return global;
+  }
+
+  /**
+   * A cancelled reporter reports errors, which makes the compiler run stop before its next phase.
+   */
+  private static void cancelOnWorkerCancellation(Reporter reporter) {
+    Worker.onCancel(() -> reporter.cancelled_$eq(true));
+  }
+
+  /** Creates an empty diagnostics file, replacing the one of a previous compile. */
+  static void createDiagnosticsFile(String diagnosticsFile) {
+    Path path = Paths.get(diagnosticsFile);
     try {
       Files.deleteIfExists(path);
       Files.createFile(path);
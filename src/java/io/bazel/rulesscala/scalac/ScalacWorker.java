@@ -2,7 +2,6 @@ package io.bazel.rulesscala.scalac;
 
 import static java.io.File.pathSeparator;
 
-import io.bazel.rulesscala.io_utils.StreamCopy;
 import io.bazel.rulesscala.jar.JarCreator;
 import io.bazel.rulesscala.worker.Worker;
 import java.io.*;
@@ -10,13 +9,16 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import scala.Option;
+import scala.reflect.io.AbstractFile;
+import scala.reflect.io.VirtualDirectory;
+import scala.tools.nsc.Global;
+import scala.tools.nsc.MainClass;
+import scala.tools.nsc.Settings;
 import scala.tools.nsc.reporters.ConsoleReporter;
 
-class ScalacWorker implements Worker.Interface {
+class ScalacWorker implements Worker.ThreadSafeInterface {
 
   private static final boolean isWindows =
       System.getProperty("os.name").toLowerCase().contains("windows");
@@ -25,6 +27,29 @@ class ScalacWorker implements Worker.Interface {
     Worker.workerMain(args, new ScalacWorker());
   }
 
+  @Override
+  public void persistentWorkerStarted() {
+    CompilerWarmup.startIfEnabled(ScalacWorker::warmupCompile, scala.Predef.class);
+  }
+
+  private static void warmupCompile(String[] args) {
+    new SilentMainClass().process(args);
+  }
+
+  /** A compiler whose messages are discarded. */
+  private static final class SilentMainClass extends MainClass {
+    @Override
+    public Global newCompiler() {
+      Settings settings = super.settings();
+      return new Global(
+          settings,
+          new ConsoleReporter(
+              settings,
+              new BufferedReader(new StringReader("")),
+              new PrintWriter(new StringWriter())));
+    }
+  }
+
   @Override
   public void work(String[] args) throws Exception {
     CompileOptions ops = new CompileOptions(args);
@@ -32,49 +57,101 @@ class ScalacWorker implements Worker.Interface {
     Path outputJar = Paths.get(ops.outputName);
     Path workdir = ensureEmptyWorkDirectory(outputJar, ops.currentTarget);
     Path classes = Files.createDirectories(workdir.resolve("classes"));
-    Path sources = Files.createDirectories(workdir.resolve("sources"));
 
-    List<File> jarFiles = extractSourceJars(ops, sources);
-    List<File> scalaJarFiles = filterFilesByExtension(jarFiles, ".scala");
-    List<File> javaJarFiles = filterFilesByExtension(jarFiles, ".java");
+    List<SourceJars.Entry> jarSources = SourceJars.read(ops.sourceJars, sourceExtensions);
 
     if (!ops.expectJavaOutput && ops.javaFiles.length != 0) {
       throw new RuntimeException("Cannot have java source files when no expected java output");
     }
 
-    if (!ops.expectJavaOutput && !javaJarFiles.isEmpty()) {
+    if (!ops.expectJavaOutput && SourceJars.containsExtension(jarSources, ".java")) {
       throw new RuntimeException(
           "Found java files in source jars but expect Java output is set to false");
     }
 
-    String[] scalaSources = collectSrcJarSources(ops.files, scalaJarFiles, javaJarFiles);
+    String[] scalaSources = ops.files;
 
-    String[] javaSources = appendToString(ops.javaFiles, javaJarFiles);
-    if (scalaSources.length == 0 && javaSources.length == 0) {
+    if (scalaSources.length == 0 && jarSources.isEmpty() && ops.javaFiles.length == 0) {
       throw new RuntimeException("Must have input files from either source jars or local files.");
     }
 
+    IncrementalCompile incremental = IncrementalCompile.forRequest(args, ops, outputJar);
+
+    /** Incremental compiles keep their classes on disk, other compiles may keep them in memory */
+    VirtualDirectory memoryOutput =
+        incremental == null && InMemoryOutput.isEnabled()
+            ? new VirtualDirectory("(memory)", Option.<VirtualDirectory>empty())
+            : null;
+
     /**
      * Compile scala sources if available (if there are none, we will simply compile java sources).
      */
-    if (scalaSources.length > 0) {
-      compileScalaSources(ops, scalaSources, classes);
+    if (incremental != null) {
+      boolean compiled =
+          incremental.compile(
+              (classpath, files, dir) ->
+                  compileScalaSources(ops, classpath, files, jarSources, dir, null));
+      if (!compiled) {
+        // Nothing was compiled, but the action still declares these outputs, the jar is built below
+        writeStatsfile(ops, 0);
+        ReportableMainClass.createDiagnosticsFile(ops.diagnosticsFile);
+      }
+      if (ops.printCompileTime) {
+        System.err.println(incremental.summary());
+      }
+    } else if (scalaSources.length > 0 || !jarSources.isEmpty()) {
+      compileScalaSources(ops, ops.classpath, scalaSources, jarSources, classes, memoryOutput);
+    }
+
+    /** Don't bother packaging the output of a cancelled compile */
+    Worker.checkCancelled();
+
+    /** Write the classes and resources straight from memory into the output jar */
+    if (memoryOutput != null) {
+      InMemoryOutput jar = new InMemoryOutput(outputJar, ops.manifestPath, ops.stampLabel);
+      addClasses(jar, memoryOutput, "");
+      jar.addResources(ops.resourceSources, ops.resourceTargets);
+      jar.addResourceJars(ops.resourceJars);
+      jar.addClasspathResources(ops.classpathResourceFiles);
+      jar.write();
+      return;
     }
 
     /** Copy the resources */
     copyResources(ops.resourceSources, ops.resourceTargets, classes);
 
-    /** Extract and copy resources from resource jars */
-    copyResourceJars(ops.resourceJars, classes);
-
-    /** Copy classpath resources to root of jar */
-    copyClasspathResourcesToRoot(ops.classpathResourceFiles, classes);
+    /** Now build the output jar, copying the entries of resource jars without extracting them */
+    JarCreator jar = new JarCreator(outputJar);
+    jar.setJarOwner(ops.stampLabel, null);
+    jar.setManifestFile(ops.manifestPath);
+    if (incremental != null) {
+      // The jar is sorted, so it doesn't matter that classes and resources are in two directories
+      jar.addDirectory(incremental.classes());
+    }
+    jar.addDirectory(classes);
+    for (String resourceJar : ops.resourceJars) {
+      jar.addJarContents(Paths.get(resourceJar));
+    }
+    /** Add classpath resources to root of jar, unless another entry has the same name */
+    InMemoryOutput.addClasspathResources(jar, ops.classpathResourceFiles);
+    jar.setNormalize(true);
+    jar.setCompression(true);
+    jar.execute();
+  }
 
-    /** Now build the output jar */
-    String[] jarCreatorArgs = {
-      "-m", ops.manifestPath, "-t", ops.stampLabel, outputJar.toString(), classes.toString()
-    };
-    JarCreator.main(jarCreatorArgs);
+  private static void addClasses(InMemoryOutput jar, AbstractFile directory, String prefix)
+      throws IOException {
+    scala.collection.Iterator<AbstractFile> files = directory.iterator();
+    while (files.hasNext()) {
+      AbstractFile file = files.next();
+      String name = prefix + file.name();
+      if (file.isDirectory()) {
+        jar.addDirectory(name);
+        addClasses(jar, file, name + "/");
+      } else {
+        jar.addFile(name, file.toByteArray());
+      }
+    }
   }
 
   private static Path ensureEmptyWorkDirectory(Path output, String label) throws IOException {
@@ -88,81 +165,8 @@ class ScalacWorker implements Worker.Interface {
     return Files.createDirectories(dir);
   }
 
-  private static String[] collectSrcJarSources(
-      String[] files, List<File> scalaJarFiles, List<File> javaJarFiles) {
-    String[] scalaSources = appendToString(files, scalaJarFiles);
-    return appendToString(scalaSources, javaJarFiles);
-  }
-
-  private static List<File> filterFilesByExtension(List<File> files, String extension) {
-    List<File> filtered = new ArrayList<File>();
-    for (File f : files) {
-      if (f.toString().endsWith(extension)) {
-        filtered.add(f);
-      }
-    }
-    return filtered;
-  }
-
   private static final String[] sourceExtensions = {".scala", ".java"};
 
-  private static List<File> extractSourceJars(CompileOptions opts, Path sources)
-      throws IOException {
-    List<File> sourceFiles = new ArrayList<File>();
-
-    for (int i = 0; i < opts.sourceJars.length; i++) {
-      String jarPath = opts.sourceJars[i];
-      if (jarPath.length() > 0) {
-        String sourceJarFileName = String.format("%s_%s", i, Paths.get(jarPath).getFileName());
-        Path sourceJarDestination = Files.createDirectories(sources.resolve(sourceJarFileName));
-        sourceFiles.addAll(extractJar(jarPath, sourceJarDestination.toString(), sourceExtensions));
-      }
-    }
-
-    return sourceFiles;
-  }
-
-  private static List<File> extractJar(String jarPath, String outputFolder, String[] extensions)
-      throws IOException {
-
-    List<File> outputPaths = new ArrayList<>();
-    JarFile jar = new JarFile(jarPath);
-    Enumeration<JarEntry> e = jar.entries();
-    while (e.hasMoreElements()) {
-      JarEntry file = e.nextElement();
-      String thisFileName = file.getName();
-      // we don't bother to extract non-scala/java sources (skip manifest)
-      if (extensions != null && !matchesFileExtensions(thisFileName, extensions)) {
-        continue;
-      }
-      File f = new File(outputFolder + File.separator + file.getName());
-
-      if (file.isDirectory()) { // if it's a directory, create it
-        f.mkdirs();
-        continue;
-      }
-
-      File parent = f.getParentFile();
-      parent.mkdirs();
-      outputPaths.add(f);
-
-      try (InputStream is = jar.getInputStream(file);
-          OutputStream fos = new FileOutputStream(f)) {
-        StreamCopy.copy(is, fos);
-      }
-    }
-    return outputPaths;
-  }
-
-  private static boolean matchesFileExtensions(String fileName, String[] extensions) {
-    for (String e : extensions) {
-      if (fileName.endsWith(e)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   private static String[] encodeBazelTargets(String[] targets) {
     return Arrays.stream(targets).map(ScalacWorker::encodeBazelTarget).toArray(String[]::new);
   }
@@ -237,47 +241,93 @@ class ScalacWorker implements Worker.Interface {
     return pluginParams.toArray(new String[pluginParams.size()]);
   }
 
-  private static void compileScalaSources(CompileOptions ops, String[] scalaSources, Path classes)
+  /**
+   * Creates the compiler for a request, backed by the compiler cache when it's enabled. The output
+   * directory is the only compiler argument which isn't part of the cache key, the sources are
+   * included so that a compiler only ever sees new versions of the same compilation units.
+   */
+  private static ReportableMainClass newMainClass(
+      CompileOptions ops,
+      String[] classpath,
+      String[] pluginArgs,
+      String[] pluginParams,
+      String[] scalaSources,
+      ClasspathCache classpathCache) {
+    CompilerCache cache = CompilerCache.fromSystemProperties();
+    if (cache == null) {
+      return new ReportableMainClass(ops, classpath, null, null, null, classpathCache);
+    }
+    String key =
+        String.join(
+            "\0",
+            merge(
+                ops.scalaOpts,
+                pluginArgs,
+                classpath,
+                pluginParams,
+                scalaSources,
+                ops.sourceJars,
+                new String[] {Boolean.toString(ops.enableDiagnosticsReport)}));
+    CompilerCache.Digests digests =
+        CompilerCache.Digests.of(Worker.inputDigests(), classpath, ops.plugins);
+    return new ReportableMainClass(ops, classpath, cache, key, digests, classpathCache);
+  }
+
+  private static void compileScalaSources(
+      CompileOptions ops,
+      String[] classpath,
+      String[] scalaSources,
+      List<SourceJars.Entry> jarSources,
+      Path classes,
+      VirtualDirectory memoryOutput)
       throws IllegalAccessException, IOException {
 
     String[] pluginArgs = buildPluginArgs(ops.plugins);
     String[] pluginParams = getPluginParamsFrom(ops);
 
+    ClasspathCache classpathCache = ClasspathCache.fromSystemProperties();
+    if (classpathCache != null && !classpathCache.covers(classpath)) {
+      classpathCache = null;
+    }
+
+    // With the classpath cache, the compiler resolves only the JDK itself
     String[] constParams = {
-      "-classpath", String.join(pathSeparator, ops.classpath), "-d", classes.toString()
+      "-classpath",
+      classpathCache != null ? "" : String.join(pathSeparator, classpath),
+      "-d",
+      classes.toString()
     };
 
     String[] compilerArgs =
         merge(ops.scalaOpts, pluginArgs, constParams, pluginParams, scalaSources);
 
-    ReportableMainClass comp = new ReportableMainClass(ops);
+    ReportableMainClass comp =
+        newMainClass(ops, classpath, pluginArgs, pluginParams, scalaSources, classpathCache);
+    comp.setSourceJarEntries(jarSources);
+    if (memoryOutput != null) {
+      comp.setOutputDirectory(memoryOutput);
+    }
 
     long start = System.currentTimeMillis();
+    boolean reusable = false;
     try {
       comp.process(compilerArgs);
+      reusable = !comp.getReporter().hasErrors() && !Worker.isCancelled();
     } catch (Throwable ex) {
       if (ex.toString().contains("scala.reflect.internal.Types$TypeError")) {
         throw new RuntimeException("Build failure with type error", ex);
       } else {
         throw ex;
       }
+    } finally {
+      comp.release(reusable);
     }
     long stop = System.currentTimeMillis();
     if (ops.printCompileTime) {
       System.err.println("Compiler runtime: " + (stop - start) + "ms.");
     }
 
-    try {
-      String buildTime = "";
-      // If enable stats file we write the volatile string component
-      // otherwise empty string for better remote cache performance.
-      if (ops.enableStatsFile) {
-        buildTime = Long.toString(stop - start);
-      }
-      Files.write(Paths.get(ops.statsfile), Arrays.asList("build_time=" + buildTime));
-    } catch (IOException ex) {
-      throw new RuntimeException("Unable to write statsfile to " + ops.statsfile, ex);
-    }
+    writeStatsfile(ops, stop - start);
 
     ConsoleReporter reporter = (ConsoleReporter) comp.getReporter();
     if (reporter instanceof ProtoReporter) {
@@ -291,6 +341,20 @@ class ScalacWorker implements Worker.Interface {
     }
   }
 
+  private static void writeStatsfile(CompileOptions ops, long buildTimeMillis) {
+    try {
+      String buildTime = "";
+      // If enable stats file we write the volatile string component
+      // otherwise empty string for better remote cache performance.
+      if (ops.enableStatsFile) {
+        buildTime = Long.toString(buildTimeMillis);
+      }
+      Files.write(Paths.get(ops.statsfile), Arrays.asList("build_time=" + buildTime));
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to write statsfile to " + ops.statsfile, ex);
+    }
+  }
+
   private static void deleteRecursively(Path directory) throws IOException {
     if (directory != null) {
       Files.walkFileTree(
@@ -332,41 +396,6 @@ class ScalacWorker implements Worker.Interface {
     }
   }
 
-  private static void copyClasspathResourcesToRoot(String[] classpathResourceFiles, Path dest)
-      throws IOException {
-    for (String s : classpathResourceFiles) {
-      Path source = Paths.get(s);
-      Path target = dest.resolve(source.getFileName());
-
-      if (Files.exists(target)) {
-        System.err.println(
-            "Classpath resource file "
-                + source.getFileName()
-                + " has a namespace conflict with another file: "
-                + target.getFileName());
-      } else {
-        Files.copy(source, target);
-      }
-    }
-  }
-
-  private static void copyResourceJars(String[] resourceJars, Path dest) throws IOException {
-    for (String jarPath : resourceJars) {
-      extractJar(jarPath, dest.toString(), null);
-    }
-  }
-
-  private static <T> String[] appendToString(String[] init, List<T> rest) {
-    String[] tmp = new String[init.length + rest.size()];
-    System.arraycopy(init, 0, tmp, 0, init.length);
-    int baseIdx = init.length;
-    for (T t : rest) {
-      tmp[baseIdx] = t.toString();
-      baseIdx += 1;
-    }
-    return tmp;
-  }
-
   private static String[] merge(String[]... arrays) {
     int totalLength = 0;
     for (String[] arr : arrays) {
@@ -2,14 +2,13 @@ package io.bazel.rulesscala.scalac;
 
 import static java.io.File.pathSeparator;
 import scala.Tuple2;
-import io.bazel.rulesscala.io_utils.StreamCopy;
 import io.bazel.rulesscala.jar.JarCreator;
 import io.bazel.rulesscala.worker.Worker;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -19,18 +18,21 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
+import dotty.tools.dotc.reporting.ConsoleReporter;
 import dotty.tools.dotc.reporting.Reporter;
 import dotty.tools.dotc.Compiler;
 import dotty.tools.dotc.Driver;
 import dotty.tools.dotc.core.Contexts;
 import dotty.tools.io.AbstractFile;
+import dotty.tools.io.VirtualDirectory;
+import dotty.tools.io.VirtualFile;
+import scala.Option;
+import scala.collection.JavaConverters;
 
-class ScalacWorker3 implements Worker.Interface {
+class ScalacWorker3 implements Worker.ThreadSafeInterface {
 
   private static final boolean isWindows =
           System.getProperty("os.name").toLowerCase().contains("windows");
@@ -39,6 +41,35 @@ class ScalacWorker3 implements Worker.Interface {
     Worker.workerMain(args, new ScalacWorker3());
   }
 
+  @Override
+  public void persistentWorkerStarted() {
+    CompilerWarmup.startIfEnabled(
+        ScalacWorker3::warmupCompile, scala.Predef.class, scala.CanEqual.class);
+  }
+
+  private static void warmupCompile(String[] args) {
+    // Messages are discarded, and scala.Console is left alone
+    PrintWriter discarded =
+        new PrintWriter(
+            new OutputStream() {
+              @Override
+              public void write(int b) {}
+
+              @Override
+              public void write(byte[] b, int off, int len) {}
+            });
+    Driver driver = new Driver();
+    Contexts.Context ctx =
+        driver
+            .initCtx()
+            .fresh()
+            .setReporter(
+                new ConsoleReporter(new BufferedReader(new StringReader("")), discarded));
+    Tuple2<scala.collection.immutable.List<AbstractFile>, Contexts.Context> r =
+        driver.setup(args, ctx).get();
+    driver.doCompile(driver.newCompiler(r._2), r._1, r._2);
+  }
+
   @Override
   public void work(String[] args) throws Exception {
     Path tmpPath = null;
@@ -48,23 +79,20 @@ class ScalacWorker3 implements Worker.Interface {
       Path outputPath = FileSystems.getDefault().getPath(ops.outputName);
       tmpPath = Files.createTempDirectory(outputPath.getParent(), "tmp");
 
-      List<File> jarFiles = extractSourceJars(ops, outputPath.getParent());
-      List<File> scalaJarFiles = filterFilesByExtension(jarFiles, ".scala");
-      List<File> javaJarFiles = filterFilesByExtension(jarFiles, ".java");
+      List<SourceJars.Entry> jarSources = SourceJars.read(ops.sourceJars, sourceExtensions);
 
       if (!ops.expectJavaOutput && ops.javaFiles.length != 0) {
         throw new RuntimeException("Cannot have java source files when no expected java output");
       }
 
-      if (!ops.expectJavaOutput && !javaJarFiles.isEmpty()) {
+      if (!ops.expectJavaOutput && SourceJars.containsExtension(jarSources, ".java")) {
         throw new RuntimeException(
                 "Found java files in source jars but expect Java output is set to false");
       }
 
-      String[] scalaSources = collectSrcJarSources(ops.files, scalaJarFiles, javaJarFiles);
+      String[] scalaSources = ops.files;
 
-      String[] javaSources = appendToString(ops.javaFiles, javaJarFiles);
-      if (scalaSources.length == 0 && javaSources.length == 0) {
+      if (scalaSources.length == 0 && jarSources.isEmpty() && ops.javaFiles.length == 0) {
         throw new RuntimeException("Must have input files from either source jars or local files.");
       }
 
@@ -72,100 +100,64 @@ class ScalacWorker3 implements Worker.Interface {
        * Compile scala sources if available (if there are none, we will simply compile java
        * sources).
        */
-      if (scalaSources.length > 0) {
-        compileScalaSources(ops, scalaSources, tmpPath);
+      VirtualDirectory memoryOutput =
+          InMemoryOutput.isEnabled()
+              ? new VirtualDirectory("(memory)", Option.<VirtualDirectory>empty())
+              : null;
+      if (scalaSources.length > 0 || !jarSources.isEmpty()) {
+        compileScalaSources(ops, scalaSources, jarSources, tmpPath, memoryOutput);
+      }
+
+      /** Don't bother packaging the output of a cancelled compile */
+      Worker.checkCancelled();
+
+      /** Write the classes and resources straight from memory into the output jar */
+      if (memoryOutput != null) {
+        InMemoryOutput jar = new InMemoryOutput(outputPath, ops.manifestPath, ops.stampLabel);
+        addClasses(jar, memoryOutput, "");
+        jar.addResources(ops.resourceSources, ops.resourceTargets);
+        jar.addResourceJars(ops.resourceJars);
+        jar.addClasspathResources(ops.classpathResourceFiles);
+        jar.write();
+        return;
       }
 
       /** Copy the resources */
       copyResources(ops.resourceSources, ops.resourceTargets, tmpPath);
 
-      /** Extract and copy resources from resource jars */
-      copyResourceJars(ops.resourceJars, tmpPath);
-
-      /** Copy classpath resources to root of jar */
-      copyClasspathResourcesToRoot(ops.classpathResourceFiles, tmpPath);
-
-      /** Now build the output jar */
-      String[] jarCreatorArgs = {
-              "-m", ops.manifestPath, "-t", ops.stampLabel, outputPath.toString(), tmpPath.toString()
-      };
-      JarCreator.main(jarCreatorArgs);
+      /** Now build the output jar, copying the entries of resource jars without extracting them */
+      JarCreator jar = new JarCreator(outputPath);
+      jar.setJarOwner(ops.stampLabel, null);
+      jar.setManifestFile(ops.manifestPath);
+      jar.addDirectory(tmpPath);
+      for (String resourceJar : ops.resourceJars) {
+        jar.addJarContents(Paths.get(resourceJar));
+      }
+      /** Add classpath resources to root of jar, unless another entry has the same name */
+      InMemoryOutput.addClasspathResources(jar, ops.classpathResourceFiles);
+      jar.setNormalize(true);
+      jar.setCompression(true);
+      jar.execute();
     } finally {
       removeTmp(tmpPath);
     }
   }
 
-  private static String[] collectSrcJarSources(
-          String[] files, List<File> scalaJarFiles, List<File> javaJarFiles) {
-    String[] scalaSources = appendToString(files, scalaJarFiles);
-    return appendToString(scalaSources, javaJarFiles);
-  }
-
-  private static List<File> filterFilesByExtension(List<File> files, String extension) {
-    List<File> filtered = new ArrayList<File>();
-    for (File f : files) {
-      if (f.toString().endsWith(extension)) {
-        filtered.add(f);
-      }
-    }
-    return filtered;
-  }
-
   private static final String[] sourceExtensions = {".scala", ".java"};
 
-  private static List<File> extractSourceJars(CompileOptions opts, Path tmpParent)
-          throws IOException {
-    List<File> sourceFiles = new ArrayList<File>();
-
-    for (String jarPath : opts.sourceJars) {
-      if (jarPath.length() > 0) {
-        Path tmpPath = Files.createTempDirectory(tmpParent, "tmp");
-        sourceFiles.addAll(extractJar(jarPath, tmpPath.toString(), sourceExtensions));
-      }
-    }
-
-    return sourceFiles;
-  }
-
-  private static List<File> extractJar(String jarPath, String outputFolder, String[] extensions)
+  private static void addClasses(InMemoryOutput jar, AbstractFile directory, String prefix)
           throws IOException {
-
-    List<File> outputPaths = new ArrayList<>();
-    JarFile jar = new JarFile(jarPath);
-    Enumeration<JarEntry> e = jar.entries();
-    while (e.hasMoreElements()) {
-      JarEntry file = e.nextElement();
-      String thisFileName = file.getName();
-      // we don't bother to extract non-scala/java sources (skip manifest)
-      if (extensions != null && !matchesFileExtensions(thisFileName, extensions)) {
-        continue;
-      }
-      File f = new File(outputFolder + File.separator + file.getName());
-
-      if (file.isDirectory()) { // if it's a directory, create it
-        f.mkdirs();
-        continue;
-      }
-
-      File parent = f.getParentFile();
-      parent.mkdirs();
-      outputPaths.add(f);
-
-      try (InputStream is = jar.getInputStream(file);
-           OutputStream fos = new FileOutputStream(f)) {
-        StreamCopy.copy(is, fos);
-      }
-    }
-    return outputPaths;
-  }
-
-  private static boolean matchesFileExtensions(String fileName, String[] extensions) {
-    for (String e : extensions) {
-      if (fileName.endsWith(e)) {
-        return true;
+    Iterator<AbstractFile> files = JavaConverters.asJavaIterator(directory.iterator());
+    while (files.hasNext()) {
+      AbstractFile file = files.next();
+      String name = prefix + file.name();
+      if (file.isDirectory()) {
+        jar.addDirectory(name);
+        addClasses(jar, file, name + "/");
+      } else {
+        jar.addFile(name, file.toByteArray());
       }
     }
-    return false;
   }
 
   private static String[] encodeBazelTargets(String[] targets) {
@@ -242,11 +234,16 @@ class ScalacWorker3 implements Worker.Interface {
     return pluginParams.toArray(new String[pluginParams.size()]);
   }
 
-  private static void compileScalaSources(CompileOptions ops, String[] scalaSources, Path tmpPath)
+  private static void compileScalaSources(
+          CompileOptions ops,
+          String[] scalaSources,
+          List<SourceJars.Entry> jarSources,
+          Path tmpPath,
+          VirtualDirectory memoryOutput)
           throws IOException {
 
-    Driver driver = new dotty.tools.dotc.Driver();
-    Contexts.Context ctx = driver.initCtx().fresh();
+    Driver driver = new SourceJarDriver();
+    Contexts.Context ctx = driver.initCtx().fresh().setReporter(new CancellableReporter());
 
     String[] pluginArgs = buildPluginArgs(ops.plugins);
     String[] pluginParams = getPluginParamsFrom(ops);
@@ -260,13 +257,16 @@ class ScalacWorker3 implements Worker.Interface {
 
     Tuple2<scala.collection.immutable.List<AbstractFile>, Contexts.Context> r = driver.setup(compilerArgs, ctx).get();
 
-    Compiler compiler = driver.newCompiler(r._2);
-
+    Contexts.Context runCtx = r._2;
+    if (memoryOutput != null) {
+      runCtx = runCtx.fresh().setSetting(runCtx.settings().outputDir(), memoryOutput);
+    }
 
+    Compiler compiler = driver.newCompiler(runCtx);
 
     long start = System.currentTimeMillis();
 
-    Reporter reporter = driver.doCompile(compiler, r._1, r._2);
+    Reporter reporter = driver.doCompile(compiler, withSourceJarEntries(r._1, jarSources), runCtx);
 
     long stop = System.currentTimeMillis();
     if (ops.printCompileTime) {
@@ -301,6 +301,48 @@ class ScalacWorker3 implements Worker.Interface {
     }
   }
 
+  /** A driver which compiles source jar entries, so it doesn't require source files. */
+  private static final class SourceJarDriver extends Driver {
+    @Override
+    public boolean sourcesRequired() {
+      return false;
+    }
+  }
+
+  /**
+   * Appends the source jar entries to the source files, as in-memory files whose path refers to
+   * the entry in the source jar.
+   */
+  private static scala.collection.immutable.List<AbstractFile> withSourceJarEntries(
+          scala.collection.immutable.List<AbstractFile> files, List<SourceJars.Entry> jarSources)
+          throws IOException {
+    List<AbstractFile> all = new ArrayList<>(JavaConverters.seqAsJavaList(files));
+    for (SourceJars.Entry entry : jarSources) {
+      VirtualFile file = new VirtualFile(entry.fileName(), entry.path());
+      try (OutputStream out = file.output()) {
+        out.write(entry.content);
+      }
+      all.add(file);
+    }
+    return JavaConverters.asScalaBuffer(all).toList();
+  }
+
+  /**
+   * A reporter which reports errors once the worker request is cancelled. Phases only run while
+   * there are no errors, so this stops the compiler run before its next phase. It writes to
+   * System.err, which the worker captures per request.
+   */
+  private static final class CancellableReporter extends ConsoleReporter {
+    CancellableReporter() {
+      super(scala.Console.in(), new PrintWriter(System.err, true));
+    }
+
+    @Override
+    public boolean hasErrors() {
+      return super.hasErrors() || Worker.isCancelled();
+    }
+  }
+
   private static void removeTmp(Path tmp) throws IOException {
     if (tmp != null) {
       Files.walkFileTree(
@@ -342,41 +384,6 @@ class ScalacWorker3 implements Worker.Interface {
     }
   }
 
-  private static void copyClasspathResourcesToRoot(String[] classpathResourceFiles, Path dest)
-          throws IOException {
-    for (String s : classpathResourceFiles) {
-      Path source = Paths.get(s);
-      Path target = dest.resolve(source.getFileName());
-
-      if (Files.exists(target)) {
-        System.err.println(
-                "Classpath resource file "
-                        + source.getFileName()
-                        + " has a namespace conflict with another file: "
-                        + target.getFileName());
-      } else {
-        Files.copy(source, target);
-      }
-    }
-  }
-
-  private static void copyResourceJars(String[] resourceJars, Path dest) throws IOException {
-    for (String jarPath : resourceJars) {
-      extractJar(jarPath, dest.toString(), null);
-    }
-  }
-
-  private static <T> String[] appendToString(String[] init, List<T> rest) {
-    String[] tmp = new String[init.length + rest.size()];
-    System.arraycopy(init, 0, tmp, 0, init.length);
-    int baseIdx = init.length;
-    for (T t : rest) {
-      tmp[baseIdx] = t.toString();
-      baseIdx += 1;
-    }
-    return tmp;
-  }
-
   private static String[] merge(String[]... arrays) {
     int totalLength = 0;
     for (String[] arr : arrays) {
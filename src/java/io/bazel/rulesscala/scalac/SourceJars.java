@@ -0,0 +1,94 @@
+package io.bazel.rulesscala.scalac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the sources in source jars into memory, so that they are compiled without being extracted
+ * to disk first.
+ */
+final class SourceJars {
+
+  /** A source file in a source jar. */
+  static final class Entry {
+    final String jar;
+    final String name;
+    final byte[] content;
+
+    Entry(String jar, String name, byte[] content) {
+      this.jar = jar;
+      this.name = name;
+      this.content = content;
+    }
+
+    /** The path compiler messages refer to, e.g. `gen/foo.srcjar!/com/foo/Bar.scala`. */
+    String path() {
+      return jar + "!/" + name;
+    }
+
+    /** The name of the file, without its directory. */
+    String fileName() {
+      return name.substring(name.lastIndexOf('/') + 1);
+    }
+  }
+
+  private SourceJars() {}
+
+  /** Reads the entries of the given source jars whose name ends with one of the extensions. */
+  static List<Entry> read(String[] sourceJars, String... extensions) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    for (String jar : sourceJars) {
+      if (jar.isEmpty()) {
+        continue;
+      }
+      try (ZipFile zip = new ZipFile(jar)) {
+        Enumeration<? extends ZipEntry> e = zip.entries();
+        while (e.hasMoreElements()) {
+          ZipEntry entry = e.nextElement();
+          if (!entry.isDirectory() && matchesFileExtensions(entry.getName(), extensions)) {
+            entries.add(new Entry(jar, entry.getName(), read(zip, entry)));
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  /** Whether any of the entries has the extension. */
+  static boolean containsExtension(List<Entry> entries, String extension) {
+    for (Entry entry : entries) {
+      if (entry.name.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+    long size = entry.getSize();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+    byte[] buffer = new byte[8192];
+    try (InputStream in = zip.getInputStream(entry)) {
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static boolean matchesFileExtensions(String fileName, String[] extensions) {
+    for (String e : extensions) {
+      if (fileName.endsWith(e)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
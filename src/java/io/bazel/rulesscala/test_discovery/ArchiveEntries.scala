@@ -1,7 +1,10 @@
 package io.bazel.rulesscala.test_discovery
 
+import io.bazel.rulesscala.jar.ClassIndex
+
 import java.io.{File, FileInputStream}
 import java.util.jar.{JarEntry, JarInputStream}
+import java.util.zip.ZipFile
 
 object ArchiveEntries {
   def listClassFiles(file: File): Stream[String] = {
@@ -13,6 +16,22 @@ object ArchiveEntries {
     allEntries.filter(_.endsWith(".class"))
   }
 
+  /**
+   * Lists the class files of top level classes. They're read from the class index of a jar when it
+   * has one, instead of going through all of its entries.
+   */
+  def listTopLevelClassFiles(file: File): Stream[String] =
+    indexedClassFiles(file).getOrElse(listClassFiles(file).filter(ClassIndex.isTopLevelClassFile(_)))
+
+  private def indexedClassFiles(file: File): Option[Stream[String]] =
+    if (file.isDirectory)
+      None
+    else {
+      val jar = new ZipFile(file)
+      try Option(ClassIndex.read(jar)).map(_.classFiles.toArray(new Array[String](0)).toStream)
+      finally jar.close()
+    }
+
   private def getJarEntryOrCloseStream(jarInputStream: JarInputStream): Option[JarEntry] = {
     val entry = Option(jarInputStream.getNextJarEntry)
 
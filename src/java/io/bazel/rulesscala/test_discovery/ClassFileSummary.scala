@@ -0,0 +1,153 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.io.{BufferedInputStream, ByteArrayInputStream, DataInputStream, EOFException, InputStream}
+import scala.util.control.NonFatal
+
+/**
+ * What test discovery needs to know of a class, read from its class file without loading it.
+ *
+ * @param superClass the binary name of the super class, None for `java.lang.Object`
+ * @param annotations the runtime visible annotations of the class, as binary names
+ * @param methodAnnotations the runtime visible annotations of any of its methods
+ */
+private[test_discovery] final case class ClassFileSummary(isAbstract: Boolean,
+                                                          superClass: Option[String],
+                                                          annotations: Set[String],
+                                                          methodAnnotations: Set[String])
+
+/**
+ * Reads class files, see https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html. Only what
+ * leads to the access flags, the super class and the runtime visible annotations is parsed, the
+ * rest is skipped.
+ */
+private[test_discovery] object ClassFileSummary {
+
+  private val AccAbstract = 0x0400
+  private val RuntimeVisibleAnnotations = "RuntimeVisibleAnnotations"
+
+  /** Reads the class file of a class from a class loader, None if it has none or it can't be read. */
+  def read(loader: ClassLoader, className: String): Option[ClassFileSummary] = {
+    val in = loader.getResourceAsStream(className.replace('.', '/') + ".class")
+    if (in == null)
+      None
+    else
+      try Some(read(in))
+      catch {
+        case NonFatal(_) => None
+      } finally in.close()
+  }
+
+  def read(bytes: Array[Byte]): ClassFileSummary =
+    read(new ByteArrayInputStream(bytes))
+
+  private def read(stream: InputStream): ClassFileSummary = {
+    val in = new DataInputStream(new BufferedInputStream(stream))
+    if (in.readInt() != 0xCAFEBABE)
+      throw new IllegalArgumentException("Not a class file")
+    skip(in, 4) // minor_version, major_version
+    val pool = readConstantPool(in)
+    val accessFlags = in.readUnsignedShort()
+    skip(in, 2) // this_class
+    val superClass = in.readUnsignedShort()
+    skip(in, 2 * in.readUnsignedShort()) // interfaces
+    readMembers(in, pool) // fields
+    val methodAnnotations = readMembers(in, pool)
+    val annotations = readAttributes(in, pool)
+    ClassFileSummary(
+      (accessFlags & AccAbstract) != 0,
+      if (superClass == 0) None else Some(pool.className(superClass)),
+      annotations,
+      methodAnnotations
+    )
+  }
+
+  private final class ConstantPool(utf8: Array[String], classNameIndexes: Array[Int]) {
+    def string(index: Int): String = utf8(index)
+
+    def className(index: Int): String = utf8(classNameIndexes(index)).replace('/', '.')
+  }
+
+  /** Keeps the strings and class names of the constant pool, skips the other constants. */
+  private def readConstantPool(in: DataInputStream): ConstantPool = {
+    val count = in.readUnsignedShort()
+    val utf8 = new Array[String](count)
+    val classNameIndexes = new Array[Int](count)
+    var i = 1
+    while (i < count) {
+      in.readUnsignedByte() match {
+        case 1 => utf8(i) = in.readUTF()
+        case 7 => classNameIndexes(i) = in.readUnsignedShort()
+        case 8 | 16 | 19 | 20 => skip(in, 2)
+        case 15 => skip(in, 3)
+        case 3 | 4 | 9 | 10 | 11 | 12 | 17 | 18 => skip(in, 4)
+        case 5 | 6 =>
+          skip(in, 8)
+          i += 1 // longs and doubles take two entries
+        case tag => throw new IllegalArgumentException(s"Unknown constant pool tag: $tag")
+      }
+      i += 1
+    }
+    new ConstantPool(utf8, classNameIndexes)
+  }
+
+  /** Reads fields or methods, returns the annotations of all of them. */
+  private def readMembers(in: DataInputStream, pool: ConstantPool): Set[String] = {
+    val annotations = Set.newBuilder[String]
+    var members = in.readUnsignedShort()
+    while (members > 0) {
+      skip(in, 6) // access_flags, name_index, descriptor_index
+      annotations ++= readAttributes(in, pool)
+      members -= 1
+    }
+    annotations.result()
+  }
+
+  /** Reads attributes, returns the runtime visible annotations among them. */
+  private def readAttributes(in: DataInputStream, pool: ConstantPool): Set[String] = {
+    val annotations = Set.newBuilder[String]
+    var attributes = in.readUnsignedShort()
+    while (attributes > 0) {
+      val name = pool.string(in.readUnsignedShort())
+      val length = in.readInt()
+      if (name == RuntimeVisibleAnnotations) {
+        var count = in.readUnsignedShort()
+        while (count > 0) {
+          annotations += readAnnotation(in, pool)
+          count -= 1
+        }
+      } else
+        skip(in, length)
+      attributes -= 1
+    }
+    annotations.result()
+  }
+
+  /** Reads an annotation, returns its type. */
+  private def readAnnotation(in: DataInputStream, pool: ConstantPool): String = {
+    val descriptor = pool.string(in.readUnsignedShort())
+    var pairs = in.readUnsignedShort()
+    while (pairs > 0) {
+      skip(in, 2) // element_name_index
+      skipElementValue(in, pool)
+      pairs -= 1
+    }
+    descriptor.substring(1, descriptor.length - 1).replace('/', '.')
+  }
+
+  private def skipElementValue(in: DataInputStream, pool: ConstantPool): Unit =
+    in.readUnsignedByte().toChar match {
+      case 'e' => skip(in, 4)
+      case '@' => readAnnotation(in, pool)
+      case '[' =>
+        var values = in.readUnsignedShort()
+        while (values > 0) {
+          skipElementValue(in, pool)
+          values -= 1
+        }
+      case _ => skip(in, 2)
+    }
+
+  private def skip(in: DataInputStream, n: Int): Unit =
+    if (in.skipBytes(n) != n)
+      throw new EOFException()
+}
@@ -1,15 +1,18 @@
 package io.bazel.rulesscala.test_discovery
 
-import io.bazel.rulesscala.test_discovery.ArchiveEntries.listClassFiles
+import io.bazel.rulesscala.test_discovery.ArchiveEntries.listTopLevelClassFiles
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.Suite
 import org.junit.runners.model.RunnerBuilder
 
 import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.lang.annotation.Annotation
 import java.lang.reflect.Modifier
 import scala.annotation.tailrec
+import scala.collection.mutable
 
 /**
  * The test running and discovery mechanism works in the following manner:
@@ -19,11 +22,16 @@ import scala.annotation.tailrec
  *     to know what tests exist in the suite.
  *   - We know which tests to run by examining the entries of the target's archive.
  *   - The archive's path is passed in a system property ("bazel.discover.classes.archive.file.path").
- *   - The entries of the archive are filtered to keep only classes
+ *   - The entries of the archive are filtered to keep only top level classes, which are read from
+ *     the class index of the archive when it has one.
  *   - Of those we filter again and keep only those which match either of the prefixes/suffixes supplied.
+ *   - These first steps are done when the test is built, by `TestIndexGenerator`, whose output is
+ *     read instead of the archives when its path is passed ("bazel.discover.classes.index.file.path").
  *   - Prefixes are supplied as a comma separated list. System property ("bazel.discover.classes.prefixes")
  *   - Suffixes are supplied as a comma separated list. System property ("bazel.discover.classes.prefixes")
  *   - We iterate over the remaining entries and format them into classes.
+ *   - Whether they are concrete classes with tests is read from their class files and the ones of
+ *     their super classes, so that only test classes are loaded.
  *   - At this point we tell JUnit (via the `RunnerBuilder`) what are the discovered test classes.
  *   - W.R.T. discovery semantics this is similar to how maven surefire/failsafe plugins work.
  *   - For debugging purposes one can ask to print the list of discovered classes.
@@ -45,10 +53,15 @@ object PrefixSuffixTestDiscoveringSuite {
 
   private val runWithAnnotation = classOf[RunWith]
   private val testAnnotation = classOf[Test]
+  private val classLoader = classOf[PrefixSuffixTestDiscoveringSuite].getClassLoader
+  private val classFileSummaries = mutable.Map[String, Option[ClassFileSummary]]()
 
   private[rulesscala] def discoverClasses(): Array[Class[_]] = {
     val archives = archivesPath.split(',').filter(_.nonEmpty)
-    val classes = archives.map(new File(_)).flatMap(discoverClassesIn).distinct
+    val classes = testIndex match {
+      case Some(index) => discoverTestClasses(index, readTestIndex(index)).toArray
+      case None => archives.map(new File(_)).flatMap(discoverClassesIn).distinct
+    }
     if (classes.isEmpty)
       throw new IllegalStateException(
         "Was not able to discover any classes " +
@@ -59,8 +72,11 @@ object PrefixSuffixTestDiscoveringSuite {
     classes
   }
 
-  private def discoverClassesIn(file: File): Stream[Class[_]] = {
-    val classes = discoverClasses(listClassFiles(file), prefixes, suffixesWithClassSuffix)
+  private def discoverClassesIn(file: File): Stream[Class[_]] =
+    discoverTestClasses(file, candidateClassNames(listTopLevelClassFiles(file), prefixes, suffixes))
+
+  private def discoverTestClasses(file: File, classNames: Stream[String]): Stream[Class[_]] = {
+    val classes = classNames.flatMap(className => testClass(className))
 
     if (printDiscoveredClasses) {
       println(s"Discovered classes in $file")
@@ -69,16 +85,20 @@ object PrefixSuffixTestDiscoveringSuite {
     classes
   }
 
-  private def discoverClasses(entries: Stream[String],
-                              prefixes: Set[String],
-                              suffixes: Set[String]): Stream[Class[_]] =
-    matchingEntries(entries, prefixes, suffixes)
+  /** The names of the classes of the entries which match the prefixes or suffixes. */
+  private[rulesscala] def candidateClassNames(entries: Stream[String],
+                                              prefixes: Set[String],
+                                              suffixes: Set[String]): Stream[String] =
+    matchingEntries(entries, prefixes, suffixes.map(_ + ".class"))
       .map(dropFileSuffix)
       .map(fileToClassFormat)
       .filterNot(innerClasses)
-      .map(Class.forName)
-      .filter(concreteClasses)
-      .filter(containsTests)
+
+  private def readTestIndex(index: File): Stream[String] =
+    Files.readAllLines(index.toPath, StandardCharsets.UTF_8)
+      .toArray(new Array[String](0))
+      .toStream
+      .filter(_.nonEmpty)
 
   private def matchingEntries(entries: Stream[String],
                               prefixes: Set[String],
@@ -108,8 +128,11 @@ object PrefixSuffixTestDiscoveringSuite {
   private def archivesPath: String =
     System.getProperty("bazel.discover.classes.archives.file.paths") //this is set by scala_junit_test rule in scala.bzl
 
-  private def suffixesWithClassSuffix: Set[String] =
-    suffixes.map(_ + ".class")
+  private def testIndex: Option[File] =
+    Option(System.getProperty("bazel.discover.classes.index.file.path"))
+      .filter(_.nonEmpty)
+      .map(new File(_))
+      .filter(_.isFile)
 
   private def suffixes: Set[String] =
     parseProperty(System.getProperty("bazel.discover.classes.suffixes"))
@@ -117,7 +140,7 @@ object PrefixSuffixTestDiscoveringSuite {
   private def prefixes: Set[String] =
     parseProperty(System.getProperty("bazel.discover.classes.prefixes"))
 
-  private def parseProperty(potentiallyEmpty: String): Set[String] =
+  private[rulesscala] def parseProperty(potentiallyEmpty: String): Set[String] =
     potentiallyEmpty.trim match {
       case emptyStr if emptyStr.isEmpty => Set[String]()
       case nonEmptyStr => nonEmptyStr.split(",").toSet
@@ -126,6 +149,34 @@ object PrefixSuffixTestDiscoveringSuite {
   private def printDiscoveredClasses: Boolean =
     System.getProperty("bazel.discover.classes.print.discovered").toBoolean
 
+  /**
+   * Loads a class if it's a concrete class with tests. That's decided from the class files when
+   * the class loader has them, classes are only loaded and checked by reflection otherwise.
+   */
+  private def testClass(className: String): Option[Class[_]] =
+    classFileSummary(className) match {
+      case Some(summary) if summary.isAbstract || !classFileContainsTests(summary) => None
+      case Some(_) => Some(Class.forName(className, false, classLoader))
+      case None => Some(Class.forName(className)).filter(concreteClasses).filter(containsTests)
+    }
+
+  private def classFileSummary(className: String): Option[ClassFileSummary] =
+    classFileSummaries.getOrElseUpdate(className, ClassFileSummary.read(classLoader, className))
+
+  @tailrec
+  private def classFileContainsTests(summary: ClassFileSummary): Boolean =
+    if (summary.annotations(runWithAnnotation.getName) || summary.methodAnnotations(testAnnotation.getName))
+      true
+    else
+      summary.superClass match {
+        case None => false
+        case Some(superClass) =>
+          classFileSummary(superClass) match {
+            case Some(superSummary) => classFileContainsTests(superSummary)
+            case None => containsTests(Class.forName(superClass, false, classLoader))
+          }
+      }
+
   private def concreteClasses(testClass: Class[_]): Boolean =
     !Modifier.isAbstract(testClass.getModifiers)
 
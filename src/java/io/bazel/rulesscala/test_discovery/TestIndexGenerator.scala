@@ -0,0 +1,35 @@
+package io.bazel.rulesscala.test_discovery
+
+import io.bazel.rulesscala.test_discovery.ArchiveEntries.listTopLevelClassFiles
+import io.bazel.rulesscala.test_discovery.PrefixSuffixTestDiscoveringSuite.{candidateClassNames, parseProperty}
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Paths}
+
+/**
+ * Writes the names of the classes of test archives which match the prefixes or suffixes of a test,
+ * one per line, when the test is built. `DiscoveredTestSuite` reads them instead of going through
+ * the archives, and only checks which of them are concrete classes with tests.
+ *
+ * Usage: `TestIndexGenerator --output=<file> --prefixes=<prefixes> --suffixes=<suffixes> <archive>...`
+ * with comma separated, possibly empty, prefixes and suffixes.
+ */
+object TestIndexGenerator {
+
+  def main(args: Array[String]): Unit = {
+    val (options, archives) = args.partition(_.startsWith("--"))
+
+    def option(name: String): String =
+      options.collectFirst { case o if o.startsWith(s"--$name=") => o.substring(name.length + 3) }
+        .getOrElse(throw new IllegalArgumentException(s"Missing --$name"))
+
+    val prefixes = parseProperty(option("prefixes"))
+    val suffixes = parseProperty(option("suffixes"))
+    val classNames = archives.toStream
+      .flatMap(archive => candidateClassNames(listTopLevelClassFiles(new File(archive)), prefixes, suffixes))
+      .distinct
+    val index = classNames.map(_ + "\n").mkString
+    Files.write(Paths.get(option("output")), index.getBytes(StandardCharsets.UTF_8))
+  }
+}
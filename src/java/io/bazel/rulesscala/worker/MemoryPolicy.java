@@ -0,0 +1,143 @@
+package io.bazel.rulesscala.worker;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a persistent worker asks the JVM for a garbage collection between work requests.
+ *
+ * <p>The policy is selected with the `-Dworker.gc.policy` JVM flag:
+ *
+ * <ul>
+ *   <li>`idle` (default): collect once no request has been running for `-Dworker.gc.idle_ms`
+ *       milliseconds (1000 by default).
+ *   <li>`threshold`: collect after a request if more than `-Dworker.gc.heap_threshold` percent (75
+ *       by default) of the maximum heap is still in use.
+ *   <li>`always`: collect after every request.
+ *   <li>`never`: leave it to the JVM.
+ * </ul>
+ */
+abstract class MemoryPolicy {
+
+  static final String POLICY_PROPERTY = "worker.gc.policy";
+  static final String IDLE_MS_PROPERTY = "worker.gc.idle_ms";
+  static final String HEAP_THRESHOLD_PROPERTY = "worker.gc.heap_threshold";
+
+  /** Called before a work request is processed. */
+  void beforeRequest() {}
+
+  /** Called once the response of a work request has been written. */
+  void afterRequest() {}
+
+  /** Releases any resources held by the policy. */
+  void close() {}
+
+  static MemoryPolicy fromSystemProperties() {
+    return create(System.getProperty(POLICY_PROPERTY, "idle"), System::gc);
+  }
+
+  static MemoryPolicy create(String name, Runnable collector) {
+    switch (name) {
+      case "always":
+        return new Always(collector);
+      case "never":
+        return new Never();
+      case "threshold":
+        return new HeapThreshold(Integer.getInteger(HEAP_THRESHOLD_PROPERTY, 75), collector);
+      case "idle":
+        return new Idle(Long.getLong(IDLE_MS_PROPERTY, 1000L), collector);
+      default:
+        throw new IllegalArgumentException(
+            "Unknown " + POLICY_PROPERTY + " '" + name + "', expected one of: "
+                + "idle, threshold, always, never");
+    }
+  }
+
+  static final class Never extends MemoryPolicy {}
+
+  static final class Always extends MemoryPolicy {
+    private final Runnable collector;
+
+    Always(Runnable collector) {
+      this.collector = collector;
+    }
+
+    @Override
+    void afterRequest() {
+      collector.run();
+    }
+  }
+
+  static final class HeapThreshold extends MemoryPolicy {
+    private final int percent;
+    private final Runnable collector;
+
+    HeapThreshold(int percent, Runnable collector) {
+      this.percent = percent;
+      this.collector = collector;
+    }
+
+    @Override
+    void afterRequest() {
+      Runtime runtime = Runtime.getRuntime();
+      long used = runtime.totalMemory() - runtime.freeMemory();
+      if (used * 100 > runtime.maxMemory() * percent) {
+        collector.run();
+      }
+    }
+  }
+
+  /** Collects on a background thread once the worker has been idle for a while. */
+  static final class Idle extends MemoryPolicy {
+    private final long idleMillis;
+    private final Runnable collector;
+    private final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "worker-idle-gc");
+              thread.setDaemon(true);
+              return thread;
+            });
+    private int inFlight = 0;
+    private ScheduledFuture<?> scheduled;
+
+    Idle(long idleMillis, Runnable collector) {
+      this.idleMillis = idleMillis;
+      this.collector = collector;
+    }
+
+    @Override
+    synchronized void beforeRequest() {
+      inFlight++;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+    }
+
+    @Override
+    synchronized void afterRequest() {
+      inFlight--;
+      if (inFlight == 0) {
+        scheduled = timer.schedule(this::collectIfIdle, idleMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void collectIfIdle() {
+      synchronized (this) {
+        if (inFlight > 0) {
+          return;
+        }
+        scheduled = null;
+      }
+      collector.run();
+    }
+
+    @Override
+    void close() {
+      timer.shutdownNow();
+    }
+  }
+}
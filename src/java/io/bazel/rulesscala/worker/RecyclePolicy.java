@@ -0,0 +1,68 @@
+package io.bazel.rulesscala.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a persistent worker should exit so that Bazel replaces it with a fresh process.
+ *
+ * <p>Long lived workers accumulate state (classloaders, symbol tables, caches) that a garbage
+ * collection can't reclaim. Recycling is off by default and enabled with either JVM flag:
+ *
+ * <ul>
+ *   <li>`-Dworker.recycle.max_retained_heap_mb`: recycle once the heap still in use after a request
+ *       (and after a collection) exceeds this many megabytes.
+ *   <li>`-Dworker.recycle.max_requests`: recycle after this many requests.
+ * </ul>
+ */
+final class RecyclePolicy {
+
+  static final String MAX_RETAINED_HEAP_PROPERTY = "worker.recycle.max_retained_heap_mb";
+  static final String MAX_REQUESTS_PROPERTY = "worker.recycle.max_requests";
+
+  private final long maxRetainedHeapBytes;
+  private final long maxRequests;
+  private final Runnable collector;
+  private final AtomicLong requests = new AtomicLong();
+
+  RecyclePolicy(long maxRetainedHeapMb, long maxRequests, Runnable collector) {
+    this.maxRetainedHeapBytes = maxRetainedHeapMb << 20;
+    this.maxRequests = maxRequests;
+    this.collector = collector;
+  }
+
+  static RecyclePolicy fromSystemProperties() {
+    return new RecyclePolicy(
+        Long.getLong(MAX_RETAINED_HEAP_PROPERTY, 0L),
+        Long.getLong(MAX_REQUESTS_PROPERTY, 0L),
+        System::gc);
+  }
+
+  /**
+   * Called once a request has been processed, before its response is written. Returns why the
+   * worker should be recycled, or null if it shouldn't.
+   *
+   * @param usedHeap the heap in use after the request, as its metrics measured it
+   */
+  String afterRequest(long usedHeap) {
+    long count = requests.incrementAndGet();
+    if (maxRequests > 0 && count >= maxRequests) {
+      return String.format("processed %d requests, the limit is %d", count, maxRequests);
+    }
+    if (maxRetainedHeapBytes > 0 && usedHeap > maxRetainedHeapBytes) {
+      // Only pay for a collection when the heap looks too big, to tell garbage from retained data
+      collector.run();
+      long retained = usedHeap();
+      if (retained > maxRetainedHeapBytes) {
+        return String.format(
+            "retained heap of %dMB after %d requests exceeds the limit of %dMB",
+            retained >> 20, count, maxRetainedHeapBytes >> 20);
+      }
+    }
+    return null;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
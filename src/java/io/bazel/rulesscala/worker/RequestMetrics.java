@@ -0,0 +1,180 @@
+package io.bazel.rulesscala.worker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Resource usage of a single work request.
+ *
+ * <p>Wall time, CPU time and allocated bytes are measured for the thread processing the request.
+ * GC counts and times are process wide, so they include collections caused by concurrent
+ * (multiplexed) requests.
+ */
+final class RequestMetrics {
+
+  /** The file to which a JSON line is appended for every work request. Off by default. */
+  static final String METRICS_FILE_PROPERTY = "worker.metrics.file";
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final long startNanos;
+  private final long startCpuNanos;
+  private final long startAllocatedBytes;
+  private final long startGcCount;
+  private final long startGcMillis;
+  private final long heapBefore;
+
+  private long wallNanos;
+  private long cpuNanos;
+  private long allocatedBytes;
+  private long gcCount;
+  private long gcMillis;
+  private long heapAfter;
+
+  private RequestMetrics() {
+    startNanos = System.nanoTime();
+    startCpuNanos = currentThreadCpuTime();
+    startAllocatedBytes = currentThreadAllocatedBytes();
+    startGcCount = totalGcCount();
+    startGcMillis = totalGcMillis();
+    heapBefore = usedHeap();
+  }
+
+  /** Starts measuring the work request running on the current thread. */
+  static RequestMetrics start() {
+    return new RequestMetrics();
+  }
+
+  /** Stops measuring. Must be called on the thread that called {@link #start()}. */
+  RequestMetrics stop() {
+    wallNanos = System.nanoTime() - startNanos;
+    cpuNanos = difference(startCpuNanos, currentThreadCpuTime());
+    allocatedBytes = difference(startAllocatedBytes, currentThreadAllocatedBytes());
+    gcCount = totalGcCount() - startGcCount;
+    gcMillis = totalGcMillis() - startGcMillis;
+    heapAfter = usedHeap();
+    return this;
+  }
+
+  /** The heap in use when the request stopped, before any collection. */
+  long heapAfter() {
+    return heapAfter;
+  }
+
+  /** A one line, human readable summary. Unavailable measurements are reported as -1. */
+  String summary() {
+    return String.format(
+        Locale.ROOT,
+        "worker metrics: wall %dms, cpu %dms, allocated %dMB, gc %d (%dms), heap %dMB -> %dMB",
+        wallNanos / 1_000_000,
+        cpuNanos < 0 ? -1 : cpuNanos / 1_000_000,
+        allocatedBytes < 0 ? -1 : allocatedBytes >> 20,
+        gcCount,
+        gcMillis,
+        heapBefore >> 20,
+        heapAfter >> 20);
+  }
+
+  String toJson(int requestId, int exitCode) {
+    return String.format(
+        Locale.ROOT,
+        "{\"request_id\":%d,\"exit_code\":%d,\"wall_ms\":%d,\"cpu_ms\":%d,"
+            + "\"allocated_bytes\":%d,\"gc_count\":%d,\"gc_ms\":%d,"
+            + "\"heap_before_bytes\":%d,\"heap_after_bytes\":%d}",
+        requestId,
+        exitCode,
+        wallNanos / 1_000_000,
+        cpuNanos < 0 ? -1 : cpuNanos / 1_000_000,
+        allocatedBytes,
+        gcCount,
+        gcMillis,
+        heapBefore,
+        heapAfter);
+  }
+
+  private static long difference(long start, long end) {
+    return start < 0 || end < 0 ? -1 : end - start;
+  }
+
+  private static long currentThreadCpuTime() {
+    if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+      return threads.getCurrentThreadCpuTime();
+    }
+    return -1;
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+      if (sunThreads.isThreadAllocatedMemorySupported()
+          && sunThreads.isThreadAllocatedMemoryEnabled()) {
+        return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private static long totalGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long totalGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /** Appends the metrics of each request as a JSON line to the file named by a JVM flag. */
+  static final class Log implements AutoCloseable {
+    private final BufferedWriter writer;
+
+    private Log(BufferedWriter writer) {
+      this.writer = writer;
+    }
+
+    /** Returns a log for the `-Dworker.metrics.file` JVM flag, or null if it isn't set. */
+    static Log fromSystemProperties() throws IOException {
+      String file = System.getProperty(METRICS_FILE_PROPERTY);
+      if (file == null || file.isEmpty()) {
+        return null;
+      }
+      return new Log(
+          Files.newBufferedWriter(
+              Paths.get(file),
+              StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.APPEND));
+    }
+
+    synchronized void write(RequestMetrics metrics, int requestId, int exitCode)
+        throws IOException {
+      writer.write(metrics.toJson(requestId, exitCode));
+      writer.newLine();
+      writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      writer.close();
+    }
+  }
+}
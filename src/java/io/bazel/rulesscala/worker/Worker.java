@@ -1,32 +1,153 @@
 package io.bazel.rulesscala.worker;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import com.google.devtools.build.lib.worker.WorkerProtocol;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Permission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A base for JVM workers.
  *
- * <p>This supports regular workers as well as persisent workers. It does not (yet) support
- * multiplexed workers.
+ * <p>This supports regular workers as well as persisent workers. Persistent workers whose
+ * implementation is a `Worker.ThreadSafeInterface` also support multiplexed work requests, which
+ * are dispatched to a bounded thread pool.
+ *
+ * <p>Persistent workers honor cancel requests: the cancelled request is flagged, see
+ * `Worker.isCancelled` and `Worker.onCancel`, and answered with a cancelled response.
  *
  * <p>Worker implementations should implement the `Worker.Interface` interface and provide a main
  * method that calls `Worker.workerMain`.
  */
 public final class Worker {
 
+  /**
+   * The number of multiplexed work requests processed concurrently. Defaults to the number of
+   * available processors.
+   */
+  static final String MULTIPLEX_THREADS_PROPERTY = "worker.multiplex.threads";
+
+  /**
+   * The number of bytes of output a single work request keeps in memory. Anything past this limit
+   * is spilled to a file under the working directory of the worker, which is referenced from the
+   * work response.
+   */
+  static final String OUTPUT_LIMIT_PROPERTY = "worker.output.limit";
+
+  private static final long DEFAULT_OUTPUT_LIMIT = 16 * 1024 * 1024;
+
+  /** Where spilled output goes, relative to the working directory of the worker. */
+  static final Path SPILL_DIRECTORY = Paths.get("_worker_output");
+
+  /** The number of spill files kept, older ones are deleted. */
+  static final int SPILL_FILES_KEPT = 16;
+
   public static interface Interface {
     public void work(String[] args) throws Exception;
+
+    /**
+     * Called once a persistent worker has redirected `System.out` and `System.err`, before it reads
+     * the first request. Anything printed from it, or from threads it starts, goes to the worker
+     * log.
+     */
+    public default void persistentWorkerStarted() {}
+  }
+
+  /**
+   * A worker implementation whose `work` method may be called concurrently from several threads.
+   *
+   * <p>Anything printed to `System.out` or `System.err` from the calling thread, or from threads
+   * it starts, is captured separately for each request.
+   */
+  public static interface ThreadSafeInterface extends Interface {}
+
+  // Inherited so that threads started by a request see its cancellation
+  private static final InheritableThreadLocal<InFlightRequest> currentRequest =
+      new InheritableThreadLocal<>();
+
+  /**
+   * Returns true if Bazel cancelled the work request running on the current thread. Long running
+   * work should poll this and give up early, e.g. between compiler phases.
+   */
+  public static boolean isCancelled() {
+    InFlightRequest state = currentRequest.get();
+    return state != null && state.isCancelled();
+  }
+
+  /**
+   * Throws a `CancellationException` if Bazel cancelled the work request running on the current
+   * thread.
+   */
+  public static void checkCancelled() {
+    if (isCancelled()) {
+      throw new CancellationException("work request was cancelled");
+    }
+  }
+
+  /**
+   * Runs `callback` once Bazel cancels the work request running on the current thread. The
+   * callback runs on the thread reading work requests, or right away if the request has already
+   * been cancelled. It is a no-op outside of a persistent worker.
+   */
+  public static void onCancel(Runnable callback) {
+    InFlightRequest state = currentRequest.get();
+    if (state != null) {
+      state.onCancel(callback);
+    }
+  }
+
+  /**
+   * Returns the digests Bazel sent along with the inputs of the work request running on the
+   * current thread, as hex strings keyed by input path. Digests are opaque tokens which change
+   * whenever the content of an input changes. Empty outside of persistent workers.
+   */
+  public static Map<String, String> inputDigests() {
+    InFlightRequest state = currentRequest.get();
+    return state != null ? state.inputDigests() : Collections.<String, String>emptyMap();
+  }
+
+  /**
+   * Returns the verbosity Bazel asked for with the work request running on the current thread. It
+   * is above 0 with `--worker_verbose`, and 0 outside of persistent workers.
+   */
+  public static int verbosity() {
+    InFlightRequest state = currentRequest.get();
+    return state != null ? state.request.getVerbosity() : 0;
   }
 
   /**
@@ -56,7 +177,10 @@ public final class Worker {
     InputStream stdin = System.in;
     PrintStream stdout = System.out;
     PrintStream stderr = System.err;
-    ByteArrayOutputStream outStream = new SmartByteArrayOutputStream();
+
+    // Output written by a thread which is not processing a request ends up in the worker log
+    SpillFiles spillFiles = new SpillFiles(SPILL_DIRECTORY, SPILL_FILES_KEPT);
+    RequestOutputStream outStream = new RequestOutputStream(stderr, spillFiles);
     PrintStream out = new PrintStream(outStream);
 
     // We can't support stdin, so assign it to read from an empty buffer
@@ -65,55 +189,330 @@ public final class Worker {
     System.setOut(out);
     System.setErr(out);
 
+    PersistentWorker worker = null;
+    ExecutorService singleplexExecutor = null;
+    ExecutorService multiplexExecutor = null;
+
     try {
-      while (true) {
-        try {
-          WorkerProtocol.WorkRequest request = WorkerProtocol.WorkRequest.parseDelimitedFrom(stdin);
-
-          // The request will be null if stdin is closed.  We're
-          // not sure if this happens in TheRealWorld™ but it is
-          // useful for testing (to shut down a persistent
-          // worker process).
-          if (request == null) {
-            break;
-          }
+      workerInterface.persistentWorkerStarted();
 
-          int code = 0;
-
-          try {
-            String[] workerArgs = stringListToArray(request.getArgumentsList());
-            String[] args = expandArgsIfArgsfile(workerArgs);
-            workerInterface.work(args);
-          } catch (ExitTrapped e) {
-            code = e.code;
-          } catch (Exception e) {
-            System.err.println(e.getMessage());
-            e.printStackTrace();
-            code = 1;
-          }
+      // Requests are read on a dedicated thread, so that cancellations are seen while a request
+      // is in flight, and so that this thread can stop waiting for requests to recycle the worker.
+      BlockingQueue<Optional<WorkerProtocol.WorkRequest>> requests = new LinkedBlockingQueue<>();
+      worker =
+          new PersistentWorker(
+              workerInterface,
+              outStream,
+              stdout,
+              MemoryPolicy.fromSystemProperties(),
+              RecyclePolicy.fromSystemProperties(),
+              RequestMetrics.Log.fromSystemProperties(),
+              () -> requests.add(Optional.empty()));
 
-          WorkerProtocol.WorkResponse.newBuilder()
-              .setExitCode(code)
-              .setOutput(outStream.toString())
-              .build()
-              .writeDelimitedTo(stdout);
+      Thread readerThread =
+          new Thread(
+              new RequestReader(stdin, requests, worker::isRecycling), "worker-stdin-reader");
+      readerThread.setDaemon(true);
+      readerThread.start();
 
-        } catch (IOException e) {
-          // for now we swallow IOExceptions when
-          // reading/writing proto
-        } finally {
-          out.flush();
-          outStream.reset();
-          System.gc();
+      singleplexExecutor = Executors.newSingleThreadExecutor(daemonThreads("worker-request"));
+      if (workerInterface instanceof ThreadSafeInterface) {
+        multiplexExecutor = newMultiplexExecutor();
+      }
+
+      while (true) {
+        Optional<WorkerProtocol.WorkRequest> next = requests.take();
+        if (!next.isPresent()) {
+          // stdin was closed, or the worker is recycled and has answered its last request. The
+          // requests already dispatched are answered before the executors are shut down.
+          break;
         }
+        dispatch(worker, next.get(), singleplexExecutor, multiplexExecutor);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     } finally {
+      if (singleplexExecutor != null) {
+        awaitTermination(singleplexExecutor);
+      }
+      if (multiplexExecutor != null) {
+        awaitTermination(multiplexExecutor);
+      }
+      if (worker != null) {
+        worker.close();
+      }
+      spillFiles.close();
       System.setIn(stdin);
       System.setOut(stdout);
       System.setErr(stderr);
     }
   }
 
+  private static void dispatch(
+      PersistentWorker worker,
+      WorkerProtocol.WorkRequest request,
+      ExecutorService singleplexExecutor,
+      ExecutorService multiplexExecutor) {
+    if (request.getCancel()) {
+      worker.cancel(request.getRequestId());
+      return;
+    }
+
+    InFlightRequest inFlight = worker.register(request);
+    if (inFlight == null) {
+      // Read after the last response of a recycled worker, the next worker process gets it
+      return;
+    }
+
+    // Bazel only assigns request ids to multiplexed requests
+    ExecutorService executor =
+        multiplexExecutor != null && request.getRequestId() != 0
+            ? multiplexExecutor
+            : singleplexExecutor;
+    executor.execute(() -> worker.process(inFlight));
+  }
+
+  /**
+   * Reads work requests from stdin until it is closed, which is signalled by an empty request, or
+   * until the worker is recycled, so that it doesn't take requests it won't be around to answer.
+   */
+  static final class RequestReader implements Runnable {
+    private final InputStream stdin;
+    private final BlockingQueue<Optional<WorkerProtocol.WorkRequest>> requests;
+    private final BooleanSupplier recycling;
+
+    RequestReader(
+        InputStream stdin,
+        BlockingQueue<Optional<WorkerProtocol.WorkRequest>> requests,
+        BooleanSupplier recycling) {
+      this.stdin = stdin;
+      this.requests = requests;
+      this.recycling = recycling;
+    }
+
+    @Override
+    public void run() {
+      while (!recycling.getAsBoolean()) {
+        WorkerProtocol.WorkRequest request;
+        try {
+          request = WorkerProtocol.WorkRequest.parseDelimitedFrom(stdin);
+        } catch (IOException e) {
+          // for now we swallow IOExceptions when
+          // reading/writing proto
+          continue;
+        }
+
+        // The request will be null if stdin is closed.  We're
+        // not sure if this happens in TheRealWorld™ but it is
+        // useful for testing (to shut down a persistent
+        // worker process).
+        if (request == null) {
+          break;
+        }
+        requests.add(Optional.of(request));
+      }
+      requests.add(Optional.empty());
+    }
+  }
+
+  /** The state shared by all work requests of a persistent worker process. */
+  private static final class PersistentWorker {
+    final Interface workerInterface;
+    final RequestOutputStream outStream;
+    final PrintStream stdout;
+    final MemoryPolicy memoryPolicy;
+    final RecyclePolicy recyclePolicy;
+    final RequestMetrics.Log metricsLog;
+    final Runnable stop;
+    final Map<Integer, InFlightRequest> inFlight = new ConcurrentHashMap<>();
+    private volatile boolean recycling = false;
+    private boolean stopping = false;
+
+    PersistentWorker(
+        Interface workerInterface,
+        RequestOutputStream outStream,
+        PrintStream stdout,
+        MemoryPolicy memoryPolicy,
+        RecyclePolicy recyclePolicy,
+        RequestMetrics.Log metricsLog,
+        Runnable stop) {
+      this.workerInterface = workerInterface;
+      this.outStream = outStream;
+      this.stdout = stdout;
+      this.memoryPolicy = memoryPolicy;
+      this.recyclePolicy = recyclePolicy;
+      this.metricsLog = metricsLog;
+      this.stop = stop;
+    }
+
+    /**
+     * Records a request as in flight, or returns null once the worker is stopping. Called on the
+     * thread reading requests.
+     */
+    synchronized InFlightRequest register(WorkerProtocol.WorkRequest request) {
+      if (stopping) {
+        return null;
+      }
+      InFlightRequest state = new InFlightRequest(request);
+      inFlight.put(request.getRequestId(), state);
+      memoryPolicy.beforeRequest();
+      return state;
+    }
+
+    /** Flags the in-flight request with the given id, if any, as cancelled. */
+    void cancel(int requestId) {
+      InFlightRequest state = inFlight.get(requestId);
+      if (state != null) {
+        state.cancel();
+      }
+    }
+
+    void process(InFlightRequest state) {
+      WorkerProtocol.WorkRequest request = state.request;
+      RequestOutput output =
+          outStream.capture(Long.getLong(OUTPUT_LIMIT_PROPERTY, DEFAULT_OUTPUT_LIMIT));
+      currentRequest.set(state);
+      RequestMetrics metrics = RequestMetrics.start();
+      boolean last = false;
+      try {
+        int code = 0;
+
+        try {
+          // A request cancelled while it was queued doesn't need to run at all
+          checkCancelled();
+          String[] workerArgs = stringListToArray(request.getArgumentsList());
+          String[] args = expandArgsIfArgsfile(workerArgs);
+          workerInterface.work(args);
+        } catch (CancellationException e) {
+          code = 1;
+        } catch (ExitTrapped e) {
+          code = e.code;
+        } catch (Exception e) {
+          System.err.println(e.getMessage());
+          e.printStackTrace();
+          code = 1;
+        }
+
+        metrics.stop();
+        // Decided before the response goes out, so that no request is read after the last one
+        decideRecycling(metrics.heapAfter());
+        if (request.getVerbosity() > 0) {
+          System.err.println(metrics.summary());
+        }
+        if (metricsLog != null) {
+          metricsLog.write(metrics, request.getRequestId(), code);
+        }
+
+        System.out.flush();
+        WorkerProtocol.WorkResponse response;
+        if (state.isCancelled()) {
+          // Bazel discards the output and exit code of cancelled requests
+          response =
+              WorkerProtocol.WorkResponse.newBuilder()
+                  .setRequestId(request.getRequestId())
+                  .setWasCancelled(true)
+                  .build();
+        } else {
+          response =
+              WorkerProtocol.WorkResponse.newBuilder()
+                  .setExitCode(code)
+                  .setOutput(output.contents())
+                  .setRequestId(request.getRequestId())
+                  .build();
+        }
+
+        last = isLastResponse();
+        synchronized (stdout) {
+          response.writeDelimitedTo(stdout);
+          stdout.flush();
+        }
+      } catch (IOException e) {
+        // for now we swallow IOExceptions when
+        // reading/writing proto
+      } finally {
+        inFlight.remove(request.getRequestId(), state);
+        currentRequest.remove();
+        outStream.release();
+        memoryPolicy.afterRequest();
+        if (last) {
+          stop.run();
+        }
+      }
+    }
+
+    /**
+     * Flags the worker as recycled once the recycle policy says so. It then stops reading requests
+     * and exits right after responding to the ones it has read, and Bazel starts a new worker
+     * process for the next request.
+     *
+     * <p>A singleplex worker decides this before its response goes out, and doesn't take on any
+     * request read after it, so it exits at a point where Bazel can't have sent another request. A
+     * multiplex worker may be sent requests while its last response is written; those it hasn't
+     * taken on by then are never answered, and Bazel has to retry them on another worker.
+     */
+    private synchronized void decideRecycling(long usedHeap) {
+      String reason = recyclePolicy.afterRequest(usedHeap);
+      if (reason != null && !recycling) {
+        recycling = true;
+        outStream.log("Recycling worker: " + reason);
+      }
+    }
+
+    /**
+     * Whether the response about to be written is the last one of a recycled worker, in which case
+     * no request is taken on from then on.
+     */
+    private synchronized boolean isLastResponse() {
+      if (recycling && inFlight.size() == 1) {
+        stopping = true;
+      }
+      return stopping;
+    }
+
+    boolean isRecycling() {
+      return recycling;
+    }
+
+    void close() {
+      memoryPolicy.close();
+      if (metricsLog != null) {
+        try {
+          metricsLog.close();
+        } catch (IOException e) {
+          // nothing left to report it to
+        }
+      }
+    }
+  }
+
+  private static ExecutorService newMultiplexExecutor() {
+    int threads =
+        Integer.getInteger(
+            MULTIPLEX_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    return Executors.newFixedThreadPool(
+        Math.max(1, threads), daemonThreads("worker-multiplex-request"));
+  }
+
+  private static ThreadFactory daemonThreads(String prefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /** The single pass runner for ephemeral (non-persistent) worker processes */
   private static void ephemeralWorkerMain(String workerArgs[], Interface workerInterface)
       throws Exception {
@@ -167,6 +566,306 @@ public final class Worker {
     }
   }
 
+  /** A work request which has been received but not yet responded to. */
+  static final class InFlightRequest {
+    final WorkerProtocol.WorkRequest request;
+    private final List<Runnable> cancelCallbacks = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    private Map<String, String> inputDigests;
+
+    InFlightRequest(WorkerProtocol.WorkRequest request) {
+      this.request = request;
+    }
+
+    synchronized Map<String, String> inputDigests() {
+      if (inputDigests == null) {
+        Map<String, String> digests = new HashMap<>();
+        for (WorkerProtocol.Input input : request.getInputsList()) {
+          digests.put(input.getPath(), toHex(input.getDigest().toByteArray()));
+        }
+        inputDigests = Collections.unmodifiableMap(digests);
+      }
+      return inputDigests;
+    }
+
+    private static String toHex(byte[] bytes) {
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    void cancel() {
+      List<Runnable> callbacks;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        callbacks = new ArrayList<>(cancelCallbacks);
+        cancelCallbacks.clear();
+      }
+      for (Runnable callback : callbacks) {
+        callback.run();
+      }
+    }
+
+    void onCancel(Runnable callback) {
+      synchronized (this) {
+        if (!cancelled) {
+          cancelCallbacks.add(callback);
+          return;
+        }
+      }
+      callback.run();
+    }
+  }
+
+  /**
+   * An OutputStream which routes writes to the output of the request running on the current
+   * thread, so that concurrent requests don't interleave their output.
+   */
+  static class RequestOutputStream extends OutputStream {
+    // Inherited so that output of threads started by a request is attributed to that request
+    private final InheritableThreadLocal<RequestOutput> outputs = new InheritableThreadLocal<>();
+    private final OutputStream fallback;
+    private final SpillFiles spillFiles;
+
+    RequestOutputStream(OutputStream fallback, SpillFiles spillFiles) {
+      this.fallback = fallback;
+      this.spillFiles = spillFiles;
+    }
+
+    /** Starts capturing the current thread's output into a new request output. */
+    RequestOutput capture(long limit) {
+      RequestOutput output = new RequestOutput(limit, fallback, spillFiles);
+      outputs.set(output);
+      return output;
+    }
+
+    /** Stops capturing the current thread's output and discards what was captured. */
+    void release() {
+      RequestOutput output = outputs.get();
+      outputs.remove();
+      if (output != null) {
+        output.close();
+      }
+    }
+
+    /** Writes a line to the worker log, rather than to the output of the current request. */
+    void log(String line) {
+      try {
+        fallback.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        fallback.flush();
+      } catch (IOException e) {
+        // nothing left to report it to
+      }
+    }
+
+    private OutputStream current() {
+      RequestOutput output = outputs.get();
+      return output != null ? output : fallback;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+  }
+
+  /**
+   * The output of a single work request. It is kept in memory up to a limit, after which the
+   * output is written to a spill file instead.
+   *
+   * <p>Once closed, writes (e.g. from threads which outlive the request) go to the fallback stream.
+   */
+  static class RequestOutput extends OutputStream {
+    private final long limit;
+    private final OutputStream fallback;
+    private final SpillFiles spillFiles;
+    private SmartByteArrayOutputStream buffer = new SmartByteArrayOutputStream();
+    private Path spillFile;
+    private OutputStream spillStream;
+    private boolean closed = false;
+
+    RequestOutput(long limit, OutputStream fallback, SpillFiles spillFiles) {
+      this.limit = limit;
+      this.fallback = fallback;
+      this.spillFiles = spillFiles;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        fallback.write(b, off, len);
+        return;
+      }
+      if (spillStream == null && buffer.size() + len > limit) {
+        spillFile = spillFiles.create();
+        spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile));
+        buffer.writeTo(spillStream);
+      }
+      if (spillStream != null) {
+        spillStream.write(b, off, len);
+      } else {
+        buffer.write(b, off, len);
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (closed) {
+        fallback.flush();
+      } else if (spillStream != null) {
+        spillStream.flush();
+      }
+    }
+
+    /**
+     * Returns the output kept in memory. If the output was spilled, a pointer to the file holding
+     * the complete output is appended.
+     */
+    synchronized String contents() throws IOException {
+      if (spillStream == null) {
+        return buffer.toString();
+      }
+      spillStream.flush();
+      return buffer.toString()
+          + String.format(
+              "%n[output truncated after %d bytes, see %s for the complete output. The file is"
+                  + " transient: it's deleted once %d newer outputs are spilled, or by a later"
+                  + " worker once this one has exited]%n",
+              buffer.size(), spillFile.toAbsolutePath(), spillFiles.kept);
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      buffer = null;
+      if (spillStream != null) {
+        try {
+          spillStream.close();
+        } catch (IOException e) {
+          // the spilled output is best effort
+        }
+        spillStream = null;
+      }
+    }
+  }
+
+  /**
+   * The files spilled output is written to. They're created in a directory of their own under the
+   * given directory, and only the most recent ones are kept, so that a long lived worker doesn't
+   * fill the disk. They outlive the worker, so that the output of its last requests can still be
+   * read once it has been recycled or stopped: the directories of workers which have exited are
+   * deleted when another worker first spills output. A worker holds a lock on a file of its
+   * directory while it runs, which tells the directories of exited workers apart.
+   */
+  static final class SpillFiles {
+    private static final String LOCK_FILE = ".lock";
+
+    private final Path parent;
+    private final int kept;
+    private final Deque<Path> files = new ArrayDeque<>();
+    private Path dir;
+    private FileChannel lock;
+
+    SpillFiles(Path parent, int kept) {
+      this.parent = parent;
+      this.kept = kept;
+    }
+
+    synchronized Path create() throws IOException {
+      if (dir == null) {
+        Files.createDirectories(parent);
+        deleteAbandoned(parent);
+        dir = Files.createTempDirectory(parent, "worker");
+        lock = FileChannel.open(dir.resolve(LOCK_FILE), CREATE, WRITE);
+        lock.lock();
+      }
+      Path file = Files.createTempFile(dir, "worker-output", ".log");
+      files.addLast(file);
+      while (files.size() > kept) {
+        deleteQuietly(files.removeFirst());
+      }
+      return file;
+    }
+
+    /** Releases the directory, its files are deleted by the next worker which spills output. */
+    synchronized void close() {
+      if (lock != null) {
+        try {
+          lock.close();
+        } catch (IOException e) {
+          // the lock is released when the process exits anyway
+        }
+        lock = null;
+      }
+    }
+
+    /** Deletes the directories of workers which have exited. */
+    private static void deleteAbandoned(Path parent) throws IOException {
+      try (DirectoryStream<Path> dirs = Files.newDirectoryStream(parent, "worker*")) {
+        for (Path dir : dirs) {
+          Path lockFile = dir.resolve(LOCK_FILE);
+          if (!Files.exists(lockFile)) {
+            // Still being created
+            continue;
+          }
+          try (FileChannel channel = FileChannel.open(lockFile, WRITE)) {
+            if (channel.tryLock() == null) {
+              continue;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+              for (Path file : files) {
+                if (!file.equals(lockFile)) {
+                  deleteQuietly(file);
+                }
+              }
+            }
+          } catch (IOException | OverlappingFileLockException e) {
+            // Still in use, e.g. by a worker of this process
+            continue;
+          }
+          deleteQuietly(lockFile);
+          deleteQuietly(dir);
+        }
+      }
+    }
+
+    private static void deleteQuietly(Path path) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        // e.g. still open on Windows, spill files are best effort
+      }
+    }
+  }
+
   static class ExitTrapped extends RuntimeException {
     final int code;
 
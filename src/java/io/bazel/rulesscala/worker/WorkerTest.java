@@ -1,6 +1,7 @@
 package io.bazel.rulesscala.worker;
 
 import com.google.devtools.build.lib.worker.WorkerProtocol;
+import com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,7 +11,15 @@ import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Test;
@@ -18,6 +27,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(JUnit4.class)
 public class WorkerTest {
@@ -95,6 +106,28 @@ public class WorkerTest {
     }
   }
 
+  @Test
+  public void testPersistentWorkerStartedAfterRedirectingOutput() throws Exception {
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      PrintStream stdout = System.out;
+      AtomicInteger started = new AtomicInteger();
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {}
+
+            @Override
+            public void persistentWorkerStarted() {
+              assertTrue(System.out != stdout);
+              started.incrementAndGet();
+            }
+          };
+
+      helper.runWorker(worker);
+      assertEquals(1, started.get());
+    }
+  }
+
   @Test
   public void testPersistentWorkerArgsfile() throws Exception {
     Path tmpFile = Files.createTempFile("testPersistentWorkerArgsfiles-args", ".txt");
@@ -131,6 +164,373 @@ public class WorkerTest {
     }
   }
 
+  @Test
+  public void testPersistentWorkerMultiplex() throws Exception {
+    System.setProperty(Worker.MULTIPLEX_THREADS_PROPERTY, "2");
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      // Both requests have to be in flight at the same time for either of them to finish
+      CountDownLatch latch = new CountDownLatch(2);
+      Worker.Interface worker =
+          new Worker.ThreadSafeInterface() {
+            @Override
+            public void work(String[] args) throws Exception {
+              System.out.println("started " + args[0]);
+              latch.countDown();
+              if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new RuntimeException("requests were not processed concurrently");
+              }
+              System.out.println("finished " + args[0]);
+            }
+          };
+
+      for (int i = 1; i <= 2; i++) {
+        WorkerProtocol.WorkRequest.newBuilder()
+            .addArguments("request-" + i)
+            .setRequestId(i)
+            .build()
+            .writeDelimitedTo(helper.requestOut);
+      }
+
+      helper.runWorker(worker);
+
+      Map<Integer, WorkerProtocol.WorkResponse> responses = new HashMap<>();
+      for (int i = 1; i <= 2; i++) {
+        WorkerProtocol.WorkResponse response =
+            WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+        responses.put(response.getRequestId(), response);
+      }
+
+      for (int i = 1; i <= 2; i++) {
+        WorkerProtocol.WorkResponse response = responses.get(i);
+        assertEquals(0, response.getExitCode());
+        assertEquals("started request-" + i + "\nfinished request-" + i + "\n", response.getOutput());
+      }
+    } finally {
+      System.clearProperty(Worker.MULTIPLEX_THREADS_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testPersistentWorkerInputDigests() throws Exception {
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      final Map<String, String> digests = new HashMap<>();
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {
+              digests.putAll(Worker.inputDigests());
+            }
+          };
+
+      WorkerProtocol.WorkRequest.newBuilder()
+          .addInputs(
+              WorkerProtocol.Input.newBuilder()
+                  .setPath("some/lib.jar")
+                  .setDigest(ByteString.copyFrom(new byte[] {0x01, (byte) 0xab}))
+                  .build())
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+      helper.runWorker(worker);
+
+      assertEquals(1, digests.size());
+      assertEquals("01ab", digests.get("some/lib.jar"));
+      assertTrue(Worker.inputDigests().isEmpty());
+    }
+  }
+
+  @Test
+  public void testPersistentWorkerCancellation() throws Exception {
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      AtomicInteger ranAfterCancel = new AtomicInteger();
+      Worker.Interface worker =
+          new Worker.ThreadSafeInterface() {
+            @Override
+            public void work(String[] args) throws Exception {
+              CountDownLatch cancelled = new CountDownLatch(1);
+              Worker.onCancel(cancelled::countDown);
+              if (!cancelled.await(10, TimeUnit.SECONDS)) {
+                throw new RuntimeException("request was not cancelled");
+              }
+              assertTrue(Worker.isCancelled());
+              Worker.checkCancelled();
+              ranAfterCancel.incrementAndGet();
+            }
+          };
+
+      WorkerProtocol.WorkRequest.newBuilder()
+          .setRequestId(1)
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+      WorkerProtocol.WorkRequest.newBuilder()
+          .setRequestId(1)
+          .setCancel(true)
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+
+      helper.runWorker(worker);
+
+      WorkerProtocol.WorkResponse response =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+      assertEquals(1, response.getRequestId());
+      assertTrue(response.getWasCancelled());
+      assertEquals("", response.getOutput());
+      assertEquals(0, ranAfterCancel.get());
+    }
+  }
+
+  @Test
+  public void testPersistentWorkerOutputSpill() throws Exception {
+    System.setProperty(Worker.OUTPUT_LIMIT_PROPERTY, "16");
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {
+              System.out.print("0123456789");
+              System.out.print("abcdefghij");
+            }
+          };
+
+      Thread workerThread = startWorker(worker);
+      WorkerProtocol.WorkRequest.newBuilder().build().writeDelimitedTo(helper.requestOut);
+
+      WorkerProtocol.WorkResponse response =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+
+      Matcher matcher =
+          Pattern.compile("output truncated after 10 bytes, see (.*) for the complete output")
+              .matcher(response.getOutput());
+      assertTrue(response.getOutput().startsWith("0123456789"));
+      assertTrue(matcher.find());
+      assertTrue(response.getOutput().contains("The file is transient"));
+
+      Path spillFile = Paths.get(matcher.group(1));
+      assertTrue(spillFile.startsWith(Worker.SPILL_DIRECTORY.toAbsolutePath()));
+      assertEquals(
+          "0123456789abcdefghij", new String(Files.readAllBytes(spillFile), StandardCharsets.UTF_8));
+
+      // The output of the last requests can still be read once the worker has exited
+      helper.requestOut.close();
+      workerThread.join(10000);
+      assertFalse(workerThread.isAlive());
+      assertTrue(Files.exists(spillFile));
+
+      Worker.SpillFiles next = new Worker.SpillFiles(Worker.SPILL_DIRECTORY, 1);
+      Path nextFile = next.create();
+      assertFalse(Files.exists(spillFile.getParent()));
+      next.close();
+      Files.delete(nextFile);
+      Files.delete(nextFile.resolveSibling(".lock"));
+      Files.delete(nextFile.getParent());
+    } finally {
+      System.clearProperty(Worker.OUTPUT_LIMIT_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testSpillFilesKeepTheMostRecentOnes() throws Exception {
+    Path parent = Files.createTempDirectory("spill");
+    Worker.SpillFiles spillFiles = new Worker.SpillFiles(parent, 2);
+    Path first = spillFiles.create();
+    Path second = spillFiles.create();
+    Path third = spillFiles.create();
+
+    assertFalse(Files.exists(first));
+    assertTrue(Files.exists(second));
+    assertTrue(Files.exists(third));
+
+    spillFiles.close();
+    assertTrue(Files.exists(third));
+
+    // A later worker deletes the files of the ones which have exited, but not of running ones
+    Worker.SpillFiles running = new Worker.SpillFiles(parent, 2);
+    Path runningFile = running.create();
+    Worker.SpillFiles later = new Worker.SpillFiles(parent, 2);
+    Path laterFile = later.create();
+    assertFalse(Files.exists(third.getParent()));
+    assertTrue(Files.exists(runningFile));
+    assertTrue(Files.exists(laterFile));
+    running.close();
+    later.close();
+  }
+
+  @Test
+  public void testPersistentWorkerMetrics() throws Exception {
+    Path metricsFile = Files.createTempFile("testPersistentWorkerMetrics", ".jsonl");
+    System.setProperty(RequestMetrics.METRICS_FILE_PROPERTY, metricsFile.toString());
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {}
+          };
+
+      WorkerProtocol.WorkRequest.newBuilder().build().writeDelimitedTo(helper.requestOut);
+      WorkerProtocol.WorkRequest.newBuilder()
+          .setVerbosity(10)
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+      helper.runWorker(worker);
+
+      WorkerProtocol.WorkResponse quiet =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+      WorkerProtocol.WorkResponse verbose =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+      assertEquals("", quiet.getOutput());
+      assertTrue(verbose.getOutput().startsWith("worker metrics: wall "));
+
+      List<String> lines = Files.readAllLines(metricsFile, StandardCharsets.UTF_8);
+      assertEquals(2, lines.size());
+      for (String line : lines) {
+        assertTrue(line.startsWith("{\"request_id\":0,\"exit_code\":0,\"wall_ms\":"));
+        assertTrue(line.contains("\"heap_after_bytes\":"));
+      }
+    } finally {
+      System.clearProperty(RequestMetrics.METRICS_FILE_PROPERTY);
+      Files.deleteIfExists(metricsFile);
+    }
+  }
+
+  @Test
+  public void testPersistentWorkerRecycle() throws Exception {
+    System.setProperty(RecyclePolicy.MAX_REQUESTS_PROPERTY, "1");
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {}
+          };
+
+      // Unlike `runWorker`, leave stdin open: the worker has to stop on its own
+      Thread workerThread = startWorker(worker);
+      WorkerProtocol.WorkRequest.newBuilder().build().writeDelimitedTo(helper.requestOut);
+
+      WorkerProtocol.WorkResponse response =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+      assertEquals(0, response.getExitCode());
+
+      workerThread.join(10000);
+      assertFalse(workerThread.isAlive());
+    } finally {
+      System.clearProperty(RecyclePolicy.MAX_REQUESTS_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testPersistentWorkerRecycleExitsRightAfterTheLastResponse() throws Exception {
+    System.setProperty(RecyclePolicy.MAX_REQUESTS_PROPERTY, "1");
+    try (PersistentWorkerHelper helper = new PersistentWorkerHelper()) {
+      AtomicInteger requests = new AtomicInteger();
+      Worker.Interface worker =
+          new Worker.Interface() {
+            @Override
+            public void work(String[] args) {
+              requests.incrementAndGet();
+            }
+          };
+
+      Thread workerThread = startWorker(worker);
+      WorkerProtocol.WorkRequest.newBuilder()
+          .addArguments("first")
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+
+      WorkerProtocol.WorkResponse first =
+          WorkerProtocol.WorkResponse.parseDelimitedFrom(helper.responseIn);
+      assertEquals(0, first.getExitCode());
+
+      // Bazel sends the next request as soon as it has the response, which the recycled worker
+      // leaves to the worker process that replaces it
+      WorkerProtocol.WorkRequest.newBuilder()
+          .addArguments("second")
+          .build()
+          .writeDelimitedTo(helper.requestOut);
+      helper.requestOut.flush();
+
+      workerThread.join(10000);
+      assertFalse(workerThread.isAlive());
+      assertEquals(1, requests.get());
+      assertEquals(0, helper.responseIn.available());
+    } finally {
+      System.clearProperty(RecyclePolicy.MAX_REQUESTS_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testRecyclePolicy() {
+    RecyclePolicy byCount = new RecyclePolicy(0, 2, () -> {});
+    assertEquals(null, byCount.afterRequest(0));
+    assertEquals("processed 2 requests, the limit is 2", byCount.afterRequest(0));
+
+    AtomicInteger collections = new AtomicInteger();
+    RecyclePolicy tinyHeap = new RecyclePolicy(1, 0, collections::incrementAndGet);
+    // The heap measured by the request metrics is below the limit, so nothing is collected
+    assertEquals(null, tinyHeap.afterRequest(0));
+    assertEquals(0, collections.get());
+    assertTrue(tinyHeap.afterRequest(Long.MAX_VALUE).startsWith("retained heap of "));
+    assertEquals(1, collections.get());
+
+    RecyclePolicy off = new RecyclePolicy(0, 0, collections::incrementAndGet);
+    assertEquals(null, off.afterRequest(Long.MAX_VALUE));
+    assertEquals(1, collections.get());
+  }
+
+  @Test
+  public void testMemoryPolicyAlwaysAndNever() {
+    AtomicInteger collections = new AtomicInteger();
+
+    MemoryPolicy always = MemoryPolicy.create("always", collections::incrementAndGet);
+    always.beforeRequest();
+    always.afterRequest();
+    assertEquals(1, collections.get());
+
+    MemoryPolicy never = MemoryPolicy.create("never", collections::incrementAndGet);
+    never.beforeRequest();
+    never.afterRequest();
+    assertEquals(1, collections.get());
+  }
+
+  @Test
+  public void testMemoryPolicyIdle() throws Exception {
+    CountDownLatch collected = new CountDownLatch(1);
+    MemoryPolicy idle = new MemoryPolicy.Idle(50, collected::countDown);
+    try {
+      idle.beforeRequest();
+      idle.beforeRequest();
+      idle.afterRequest();
+      // a request is still in flight, so the worker isn't idle
+      assertFalse(collected.await(200, TimeUnit.MILLISECONDS));
+
+      idle.afterRequest();
+      assertTrue(collected.await(10, TimeUnit.SECONDS));
+    } finally {
+      idle.close();
+    }
+  }
+
+  @Test
+  public void testMemoryPolicyUnknown() {
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class, () -> MemoryPolicy.create("sometimes", () -> {}));
+    assertTrue(e.getMessage().contains("worker.gc.policy 'sometimes'"));
+  }
+
+  /** Runs a persistent worker on another thread, without closing its stdin. */
+  private static Thread startWorker(Worker.Interface worker) {
+    Thread workerThread =
+        new Thread(
+            () -> {
+              try {
+                Worker.workerMain(new String[] {"--persistent_worker"}, worker);
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            });
+    workerThread.start();
+    return workerThread;
+  }
+
   /** A helper to manage IO when testing a persistent worker. */
   private final class PersistentWorkerHelper implements AutoCloseable {
 
@@ -11,7 +11,7 @@ import io.bazel.rulesscala.io_utils.DeleteRecursively
 import io.bazel.rulesscala.jar.JarCreator
 import io.bazel.rulesscala.worker.Worker
 
-object ScroogeWorker extends Worker.Interface {
+object ScroogeWorker extends Worker.ThreadSafeInterface {
 
   def main(args: Array[String]): Unit = Worker.workerMain(args, ScroogeWorker)
 
@@ -0,0 +1,59 @@
+package io.bazel.rulesscala.jar
+
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+import java.util.Random
+
+import org.openjdk.jmh.annotations._
+
+/**
+ * Creates a jar from a directory of somewhat compressible files, on one thread and with parallel
+ * compression. Run with e.g. `bazel run test/jmh:jar_creator_benchmark -- -p threads=1,4`.
+ */
+@State(Scope.Benchmark)
+class JarCreatorBenchmark {
+  @Param(Array("100", "2000", "10000"))
+  var entries: Int = _
+
+  @Param(Array("1024", "16384", "262144"))
+  var entrySize: Int = _
+
+  @Param(Array("1", "2", "4", "8"))
+  var threads: Int = _
+
+  var classes: Path = _
+  var jar: Path = _
+
+  @Setup
+  def setup(): Unit = {
+    classes = Files.createTempDirectory("classes")
+    jar = Files.createTempFile("benchmark", ".jar")
+    val random = new Random(42)
+    for (i <- 0 until entries) {
+      val file = classes.resolve(s"p${i % 50}/C$i.class")
+      Files.createDirectories(file.getParent)
+      val content = new Array[Byte](entrySize)
+      for (j <- 0 until entrySize) {
+        content(j) = (if (random.nextInt(4) == 0) random.nextInt(256) else 'a' + random.nextInt(6)).toByte
+      }
+      Files.write(file, content)
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    val paths = Files.walk(classes).sorted(Comparator.reverseOrder[Path]()).iterator()
+    while (paths.hasNext) {
+      Files.delete(paths.next())
+    }
+    Files.delete(jar)
+  }
+
+  @Benchmark
+  def createJar(): Unit = {
+    val creator = new JarCreator(jar)
+    creator.addDirectory(classes)
+    creator.setCompressionThreads(threads)
+    creator.execute()
+  }
+}
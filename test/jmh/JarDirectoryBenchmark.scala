@@ -0,0 +1,55 @@
+package io.bazel.rulesscala.jar
+
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+import java.util.Random
+
+import org.openjdk.jmh.annotations._
+
+/**
+ * Creates a jar from a large tree of small class files, where reading the directory and the file
+ * attributes costs as much as compressing. Run with e.g.
+ * `bazel run test/jmh:jar_creator_benchmark -- JarDirectoryBenchmark`.
+ */
+@State(Scope.Benchmark)
+class JarDirectoryBenchmark {
+  @Param(Array("10000", "50000"))
+  var entries: Int = _
+
+  @Param(Array("true", "false"))
+  var compression: Boolean = _
+
+  var classes: Path = _
+  var jar: Path = _
+
+  @Setup
+  def setup(): Unit = {
+    classes = Files.createTempDirectory("classes")
+    jar = Files.createTempFile("benchmark", ".jar")
+    val random = new Random(42)
+    for (i <- 0 until entries) {
+      val file = classes.resolve(s"com/example/p${i % 20}/q${i % 500}/C$i.class")
+      Files.createDirectories(file.getParent)
+      val content = new Array[Byte](500 + random.nextInt(3000))
+      random.nextBytes(content)
+      Files.write(file, content)
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    val paths = Files.walk(classes).sorted(Comparator.reverseOrder[Path]()).iterator()
+    while (paths.hasNext) {
+      Files.delete(paths.next())
+    }
+    Files.delete(jar)
+  }
+
+  @Benchmark
+  def createJar(): Unit = {
+    val creator = new JarCreator(jar)
+    creator.addDirectory(classes)
+    creator.setCompression(compression)
+    creator.execute()
+  }
+}
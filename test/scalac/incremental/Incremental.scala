@@ -0,0 +1,5 @@
+package scalarules.test.incremental
+
+object Incremental {
+  val greeting = "hello"
+}
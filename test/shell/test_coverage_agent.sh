@@ -0,0 +1,49 @@
+# shellcheck source=./test_runner.sh
+dir=$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )
+. "${dir}"/test_runner.sh
+. "${dir}"/test_helper.sh
+runner=$(get_test_runner "${1:-local}")
+
+test_coverage_with_jacoco_agent() {
+    bazel coverage \
+          --extra_toolchains="//test/coverage_agent:agent_coverage_toolchain" \
+          //test/coverage_scalatest:test-scalatest
+    coverage=$(bazel info bazel-testlogs)/test/coverage_scalatest/test-scalatest/coverage.dat
+    # The same Scala sources as with offline instrumentation
+    diff \
+        <(grep "^SF:.*\.scala$" test/coverage_scalatest/expected-coverage.dat) \
+        <(grep "^SF:.*\.scala$" $coverage)
+    # Lines the test runs are covered
+    awk '/^SF:test\/coverage_scalatest\/D1.scala$/,/^end_of_record$/' $coverage \
+        | grep -q "^DA:[0-9]*,[1-9]"
+}
+
+test_coverage_with_jacoco_agent_skips_instrumentation_actions() {
+    if bazel aquery \
+          --collect_code_coverage \
+          --extra_toolchains="//test/coverage_agent:agent_coverage_toolchain" \
+          "mnemonic(JacocoInstrumenter, deps(//test/coverage_scalatest:test-scalatest))" \
+          | grep -q "Mnemonic: JacocoInstrumenter"; then
+        echo "Expected no JacocoInstrumenter action with the agent"
+        exit 1
+    fi
+}
+
+# The agent must come from the Jacoco build of Bazel's jacocorunner: both carry the Jacoco runtime,
+# in a package named after that build
+test_coverage_jacoco_agent_matches_the_jacocorunner() {
+    bazel build @jacoco_agent//file @bazel_tools//tools/jdk:JacocoCoverage
+    local output_base=$(bazel info output_base)
+    local agent=$(find "$output_base/external/jacoco_agent" -name "org.jacoco.agent-*-runtime.jar")
+    local jacocorunner=$(find "$output_base/external" -name "JacocoCoverage*.jar" | head -1)
+    local agent_runtime=$(unzip -l "$agent" | grep -o "org/jacoco/agent/rt/internal_[0-9a-f]*" | sort -u)
+    local jacocorunner_runtime=$(unzip -l "$jacocorunner" | grep -o "org/jacoco/agent/rt/internal_[0-9a-f]*" | sort -u)
+    if [ -z "$agent_runtime" ] || [ "$agent_runtime" != "$jacocorunner_runtime" ]; then
+        echo "Expected the Jacoco runtime of $jacocorunner ($jacocorunner_runtime) in $agent ($agent_runtime)"
+        exit 1
+    fi
+}
+
+$runner test_coverage_jacoco_agent_matches_the_jacocorunner
+$runner test_coverage_with_jacoco_agent
+$runner test_coverage_with_jacoco_agent_skips_instrumentation_actions
@@ -0,0 +1,30 @@
+# shellcheck source=./test_runner.sh
+dir=$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )
+. "${dir}"/test_runner.sh
+. "${dir}"/test_helper.sh
+runner=$(get_test_runner "${1:-local}")
+
+test_incremental_compile_rebuilds_after_resource_only_change() {
+  resource=test/scalac/incremental/resource.txt
+  jar=bazel-bin/test/scalac/incremental/with_resource.jar
+  git checkout $resource
+  bazel build --strategy=Scalac=worker //test/scalac/incremental:with_resource
+  # The sources are unchanged, so the worker has nothing to recompile
+  echo "changed" > $resource
+  set +e
+  bazel build --strategy=Scalac=worker //test/scalac/incremental:with_resource
+  RET=$?
+  content=$(unzip -p $jar resource.txt)
+  git checkout $resource
+  set -e
+  if [ $RET -ne 0 ]; then
+    echo "Rebuild after a resource only change failed"
+    exit 1
+  fi
+  if [ "$content" != "changed" ]; then
+    echo "Expected the changed resource in the jar, found: $content"
+    exit 1
+  fi
+}
+
+$runner test_incremental_compile_rebuilds_after_resource_only_change
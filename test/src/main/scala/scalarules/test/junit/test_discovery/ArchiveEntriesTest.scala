@@ -1,6 +1,7 @@
 package io.bazel.rulesscala.test_discovery
 
-import io.bazel.rulesscala.test_discovery.ArchiveEntries.listClassFiles
+import io.bazel.rulesscala.jar.JarCreator
+import io.bazel.rulesscala.test_discovery.ArchiveEntries.{listClassFiles, listTopLevelClassFiles}
 import org.specs2.mutable.SpecWithJUnit
 
 import java.io.File
@@ -22,4 +23,17 @@ class ArchiveEntriesTest extends SpecWithJUnit {
     val expectedClassFile = "io/bazel/rulesscala/test_discovery/ArchiveEntriesTest.class"
     listClassFiles(new File(thisTestJar)) must containTheSameElementsAs(Seq(expectedClassFile))
   }
+
+  "List top level class files from the class index of a jar" in {
+    val dir = Files.createTempDirectory("temp")
+    Files.createFile(dir.resolve("Another.class"))
+    Files.createFile(dir.resolve("Another$Nested.class"))
+    val jar = Files.createTempFile("temp", ".jar")
+    val creator = new JarCreator(jar)
+    creator.addDirectory(dir)
+    creator.setClassIndex(true)
+    creator.execute()
+
+    listTopLevelClassFiles(jar.toFile) must containTheSameElementsAs(Seq("Another.class"))
+  }
 }
@@ -0,0 +1,43 @@
+package io.bazel.rulesscala.test_discovery
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import org.specs2.mutable.SpecWithJUnit
+
+abstract class AbstractContract {
+  @Test
+  def contract(): Unit = ()
+}
+
+@RunWith(classOf[JUnit4])
+class ContractImplementation extends AbstractContract
+
+class ClassFileSummaryTest extends SpecWithJUnit {
+  private val loader = getClass.getClassLoader
+
+  "Read the access flags and method annotations of a class" in {
+    val summary = ClassFileSummary.read(loader, classOf[AbstractContract].getName).get
+
+    summary.isAbstract must beTrue
+    summary.superClass must beSome("java.lang.Object")
+    summary.methodAnnotations must contain("org.junit.Test")
+  }
+
+  "Read the super class and annotations of a class" in {
+    val summary = ClassFileSummary.read(loader, classOf[ContractImplementation].getName).get
+
+    summary.isAbstract must beFalse
+    summary.superClass must beSome(classOf[AbstractContract].getName)
+    summary.annotations must contain("org.junit.runner.RunWith")
+    summary.methodAnnotations must not(contain("org.junit.Test"))
+  }
+
+  "Read nothing for classes without class files" in {
+    ClassFileSummary.read(loader, "does.not.Exist") must beNone
+  }
+
+  "Reject what isn't a class file" in {
+    ClassFileSummary.read(Array[Byte](1, 2, 3, 4)) must throwA[IllegalArgumentException]
+  }
+}
@@ -0,0 +1,26 @@
+package io.bazel.rulesscala.test_discovery
+
+import io.bazel.rulesscala.jar.JarCreator
+import org.specs2.mutable.SpecWithJUnit
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+class TestIndexGeneratorTest extends SpecWithJUnit {
+  "Write the classes of a jar matching the prefixes or suffixes" in {
+    val dir = Files.createTempDirectory("temp")
+    Files.createDirectories(dir.resolve("foo"))
+    Seq("foo/ATest.class", "foo/ATest$Nested.class", "foo/IntegrationB.class", "foo/Other.class")
+      .foreach(name => Files.createFile(dir.resolve(name)))
+    val jar = Files.createTempFile("temp", ".jar")
+    val creator = new JarCreator(jar)
+    creator.addDirectory(dir)
+    creator.execute()
+    val index = Files.createTempFile("index", ".txt")
+
+    TestIndexGenerator.main(Array(s"--output=$index", "--prefixes=Integration", "--suffixes=Test", jar.toString))
+
+    val classNames = Files.readAllLines(index, StandardCharsets.UTF_8).toArray(new Array[String](0)).toSeq
+    classNames must containTheSameElementsAs(Seq("foo.ATest", "foo.IntegrationB"))
+  }
+}
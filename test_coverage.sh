@@ -13,3 +13,4 @@ test_dir=$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )/test/shell
 . "${test_dir}"/test_coverage_scalatest.sh
 . "${test_dir}"/test_coverage_equals_in_target.sh
 . "${test_dir}"/test_coverage_scalatest_resources.sh
+. "${test_dir}"/test_coverage_agent.sh
@@ -39,6 +39,7 @@ $runner bazel build //test_statsfile:SimpleNoStatsFile_statsfile --extra_toolcha
 . "${test_dir}"/test_scalafmt.sh
 . "${test_dir}"/test_scala_binary.sh
 . "${test_dir}"/test_scalac_jvm_flags.sh
+. "${test_dir}"/test_scalac_incremental.sh
 . "${test_dir}"/test_scala_classpath.sh
 . "${test_dir}"/test_scala_config.sh
 . "${test_dir}"/test_scala_import_source_jar.sh
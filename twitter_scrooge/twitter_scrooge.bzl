@@ -195,7 +195,11 @@ def _generate_jvm_code(ctx, label, compile_thrifts, include_thrifts, jar_output,
         outputs = [jar_output],
         mnemonic = "ScroogeRule",
         progress_message = "creating scrooge files %s" % ctx.label,
-        execution_requirements = {"supports-workers": "1"},
+        execution_requirements = {
+            "supports-multiplex-workers": "1",
+            "supports-worker-cancellation": "1",
+            "supports-workers": "1",
+        },
         #  when we run with a worker, the `@argfile.path` is removed and passed
         #  line by line as arguments in the protobuf. In that case,
         #  the rest of the arguments are passed to the process that